@@ -0,0 +1,100 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/* Checks that -rd and -re rebuild an output that was deleted after the
+ * manifest recorded it, and still skip the ones left alone. Works in a
+ * temporary directory and exits with status 1 on failure. */
+public class BatchCheck {
+    public static void main(String[] args) throws Exception {
+	Path tmp = Files.createTempDirectory("batchcheck");
+	try {
+	    check(tmp);
+	    System.out.println("BatchCheck OK");
+	} catch (AssertionError e) {
+	    System.out.println("BatchCheck FAILED: " + e.getMessage());
+	    System.exit(1);
+	} finally {
+	    delete(tmp);
+	}
+    }
+
+    static void check(Path tmp) throws Exception {
+	Properties p = new Properties();
+	p.setProperty("count", "3");
+	p.setProperty("size.median", "2048");
+	p.setProperty("dir.fanout", "2");
+	p.setProperty("mix.tooltip", "1");
+	p.setProperty("mix.anim", "1");
+	p.setProperty("mix.neg", "1");
+	CorpusGen gen = new CorpusGen(CorpusGen.Profile.of(p));
+	String in = tmp.resolve("res").toString(), dec = tmp.resolve("dec").toString(), enc = tmp.resolve("enc").toString();
+	for (int i = 0; i < gen.p.count; i++) {
+	    File f = new File(in, gen.path(i));
+	    f.getParentFile().mkdirs();
+	    Files.write(f.toPath(), gen.res(i));
+	}
+	LayerUtil.print = false;
+	decode(in, dec);
+	encode(dec, enc);
+
+	File kept = new File(enc, gen.path(0)), gone = new File(enc, gen.path(1));
+	long mtime = kept.lastModified();
+	byte[] data = Files.readAllBytes(gone.toPath());
+	Files.delete(gone.toPath());
+	encode(dec, enc);
+	check(gone.isFile(), "-re did not rebuild deleted " + gone);
+	check(Arrays.equals(data, Files.readAllBytes(gone.toPath())), "-re rebuilt " + gone + " differently");
+	check(kept.lastModified() == mtime, "-re rewrote unchanged " + kept);
+
+	File meta = new File(new File(dec, gen.path(2)), "meta");
+	delete(meta.getParentFile().getParentFile().toPath());
+	decode(in, dec);
+	check(meta.isFile(), "-rd did not rebuild deleted " + meta.getParentFile());
+    }
+
+    static void decode(String in, String out) throws Exception {
+	new Batch(in, out + "/", 0).run();
+    }
+
+    static void encode(String in, String out) throws Exception {
+	new Batch(in, out + "/", 1).run();
+    }
+
+    static void check(boolean c, String msg) {
+	if (!c)
+	    throw (new AssertionError(msg));
+    }
+
+    static void delete(Path p) throws IOException {
+	try (Stream<Path> s = Files.walk(p)) {
+	    for (Path f : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator)
+		Files.delete(f);
+	}
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+import haven.LayerWriter;
+import haven.Message;
+import haven.PNG;
+import haven.Resource;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/* Writes a synthetic corpus of .res files from a profile. Every file
+ * is parsed by the Resource layer classes and encoded again with
+ * Layer.encode() before it is written, and must come back unchanged,
+ * so only payloads LayerUtil reads and writes alike end up in the
+ * corpus. Resource i depends only on the seed and i, so the same
+ * profile always gives the same bytes, however large the count or
+ * however many threads write it. */
+public class CorpusGen {
+    static final String U = "Usage: CorpusGen PROFILE OUT\n" +
+	"  PROFILE is a properties file, see bench/corpus.properties\n";
+
+    static final String[] TYPES = {
+	"image", "tile", "neg", "anim", "tileset", "action", "code",
+	"codeentry", "audio", "overlay", "tooltip", "pagina",
+    };
+
+    /* Types whose Layer.encode() doesn't give back the payload it was
+     * read from: overlay leaves out the version byte and pagina adds a
+     * NUL. Their payloads are only checked to parse. */
+    static final Set<String> ONEWAY = new HashSet<String>(Arrays.asList("overlay", "pagina"));
+
+    /* Settings read from a profile:
+     *   seed           base seed
+     *   count          number of resources
+     *   size.median    median resource size in bytes
+     *   size.sigma     spread of the log-normal size distribution
+     *   size.min, size.max
+     *   layers.max     most layers in one resource
+     *   mix.TYPE       relative weight of each layer type
+     *   dir.fanout     resources per output directory */
+    public static class Profile {
+	public long seed = 1;
+	public int count = 100;
+	public double median = 64 << 10, sigma = 1.0;
+	public int min = 256, max = 16 << 20, lmax = 64, fanout = 1000;
+	public final double[] mix = new double[TYPES.length];
+
+	public static Profile load(File f) throws IOException {
+	    Properties p = new Properties();
+	    try (InputStream in = new FileInputStream(f)) {
+		p.load(in);
+	    }
+	    return (of(p));
+	}
+
+	public static Profile of(Properties p) {
+	    Profile ret = new Profile();
+	    ret.seed = Long.parseLong(p.getProperty("seed", Long.toString(ret.seed)));
+	    ret.count = Integer.parseInt(p.getProperty("count", Integer.toString(ret.count)));
+	    ret.median = Double.parseDouble(p.getProperty("size.median", Double.toString(ret.median)));
+	    ret.sigma = Double.parseDouble(p.getProperty("size.sigma", Double.toString(ret.sigma)));
+	    ret.min = Integer.parseInt(p.getProperty("size.min", Integer.toString(ret.min)));
+	    ret.max = Integer.parseInt(p.getProperty("size.max", Integer.toString(ret.max)));
+	    ret.lmax = Integer.parseInt(p.getProperty("layers.max", Integer.toString(ret.lmax)));
+	    ret.fanout = Integer.parseInt(p.getProperty("dir.fanout", Integer.toString(ret.fanout)));
+	    double tot = 0;
+	    for (int i = 0; i < TYPES.length; i++)
+		tot += ret.mix[i] = Double.parseDouble(p.getProperty("mix." + TYPES[i], "0"));
+	    if (tot <= 0)
+		throw (new IllegalArgumentException("Profile has no mix.TYPE weights"));
+	    return (ret);
+	}
+    }
+
+    public final Profile p;
+    private final double tot;
+
+    public CorpusGen(Profile p) {
+	this.p = p;
+	double tot = 0;
+	for (double w : p.mix)
+	    tot += w;
+	this.tot = tot;
+    }
+
+    public static void main(String[] args) throws Exception {
+	if (args.length != 2) {
+	    System.out.print(U);
+	    return;
+	}
+	CorpusGen gen = new CorpusGen(Profile.load(new File(args[0])));
+	File out = new File(args[1]);
+	long st = System.nanoTime();
+	long bytes = IntStream.range(0, gen.p.count).parallel().mapToLong(i -> {
+		try {
+		    byte[] data = gen.res(i);
+		    File f = new File(out, gen.path(i));
+		    f.getParentFile().mkdirs();
+		    try (OutputStream fp = new FileOutputStream(f)) {
+			fp.write(data);
+		    }
+		    return (data.length);
+		} catch (Exception e) {
+		    throw (new RuntimeException("Resource " + i, e));
+		}
+	    }).sum();
+	System.out.println(String.format("Wrote %d resources, %d bytes in %.1f s", gen.p.count, bytes, (System.nanoTime() - st) / 1e9));
+    }
+
+    public String path(int i) {
+	return (String.format("%04d/gen%07d.res", i / p.fanout, i));
+    }
+
+    /* The .res bytes of resource i */
+    public byte[] res(int i) throws Exception {
+	Random rnd = new Random(p.seed * 0x9e3779b97f4a7c15L + i);
+	long size = Math.round(p.median * Math.exp(p.sigma * rnd.nextGaussian()));
+	size = Math.max(p.min, Math.min(p.max, size));
+	LayerWriter buf = new LayerWriter();
+	buf.addbytes("Haven Resource 1".getBytes(StandardCharsets.US_ASCII));
+	buf.adduint16(1);
+	int[] n = new int[TYPES.length];
+	for (int l = 0; l < p.lmax && buf.size() < size; l++) {
+	    int t = pick(rnd);
+	    int budget = (int) Math.max(16, (size - buf.size()) / 2);
+	    buf.begin(strz(TYPES[t]));
+	    layer(TYPES[t], n[t]++, rnd, budget, buf);
+	    buf.end();
+	}
+	byte[] ret = buf.fin();
+	check(ret, "/" + path(i));
+	return (ret);
+    }
+
+    /* Parses a generated resource with the layer classes and encodes it
+     * again through Layer.encode(). Each payload must come back as it
+     * was, so the layouts written by layer() can't drift from the ones
+     * LayerUtil reads and writes. */
+    static void check(byte[] res, String name) throws Exception {
+	byte[] enc = new Resource(res, name, "").encode();
+	List<Resource.LayerRef> a = Resource.index(res, name, "").index();
+	List<Resource.LayerRef> b = Resource.index(enc, name, "").index();
+	if (a.size() != b.size())
+	    throw (new Exception(name + ": " + a.size() + " layers encoded as " + b.size()));
+	for (int l = 0; l < a.size(); l++) {
+	    Resource.LayerRef x = a.get(l), y = b.get(l);
+	    if (ONEWAY.contains(x.type))
+		continue;
+	    if (!x.type.equals(y.type) || x.len != y.len ||
+		!Arrays.equals(Arrays.copyOfRange(res, x.off, x.off + x.len), Arrays.copyOfRange(enc, y.off, y.off + y.len)))
+		throw (new Exception(name + ": layer " + l + " (" + x.type + ") does not encode back to its payload"));
+	}
+    }
+
+    private int pick(Random rnd) {
+	double r = rnd.nextDouble() * tot;
+	for (int i = 0; i < TYPES.length; i++) {
+	    if ((r -= p.mix[i]) < 0)
+		return (i);
+	}
+	return (TYPES.length - 1);
+    }
+
+    /* Writes a payload of the given type, using up to about budget bytes
+     * where the type has any size to speak of. The layer classes have
+     * no way to be built from field values, so the fields are laid out
+     * here, and check() holds them to what the layer classes encode. */
+    static void layer(String type, int n, Random rnd, int budget, Message out) throws IOException {
+	switch (type) {
+	case "image": {
+	    out.adduint16(rnd.nextInt(10));	/* z */
+	    out.adduint16(rnd.nextInt(10));	/* subz */
+	    out.adduint8(0);			/* flags */
+	    out.adduint16(n);			/* id */
+	    out.adduint16(rnd.nextInt(64) - 32);	/* offset */
+	    out.adduint16(rnd.nextInt(64) - 32);
+	    out.addbytes(png(rnd, budget));
+	    break;
+	}
+	case "tile": {
+	    out.adduint8("gf".charAt(rnd.nextInt(2)));
+	    out.adduint8(n & 0xff);
+	    out.adduint16(1 + rnd.nextInt(100));
+	    out.addbytes(png(rnd, budget));
+	    break;
+	}
+	case "neg": {
+	    for (int i = 0; i < 8; i++)
+		out.adduint16(rnd.nextInt(200) - 100);
+	    int en = rnd.nextInt(4);
+	    out.adduint8(en);
+	    for (int i = 0; i < en; i++) {
+		int cn = 1 + rnd.nextInt(8);
+		out.adduint8(i);
+		out.adduint16(cn);
+		for (int o = 0; o < cn * 2; o++)
+		    out.adduint16(rnd.nextInt(200) - 100);
+	    }
+	    break;
+	}
+	case "anim": {
+	    int f = 1 + rnd.nextInt(Math.min(64, Math.max(1, budget / 2)));
+	    out.adduint16(n);
+	    out.adduint16(50 + rnd.nextInt(200));
+	    out.adduint16(f);
+	    for (int i = 0; i < f; i++)
+		out.adduint16(rnd.nextInt(f));
+	    break;
+	}
+	case "tileset": {
+	    int fn = rnd.nextInt(8);
+	    out.adduint8(rnd.nextInt(4));
+	    out.adduint16(fn);
+	    out.adduint16(rnd.nextInt(1000));
+	    for (int i = 0; i < fn; i++) {
+		out.addstring("gfx/tiles/" + words(rnd, 1));
+		out.adduint16(rnd.nextInt(10));
+		out.adduint8(1 + rnd.nextInt(100));
+	    }
+	    break;
+	}
+	case "action": {
+	    out.addstring("paginae/" + words(rnd, 1));
+	    out.adduint16(rnd.nextInt(100));
+	    out.addstring(words(rnd, 2));
+	    out.addstring("");
+	    out.adduint16('a' + rnd.nextInt(26));
+	    int ad = rnd.nextInt(4);
+	    out.adduint16(ad);
+	    for (int i = 0; i < ad; i++)
+		out.addstring(words(rnd, 1));
+	    break;
+	}
+	case "code": {
+	    out.addstring("Gen" + n);
+	    byte[] cls = new byte[Math.max(8, budget)];
+	    rnd.nextBytes(cls);
+	    cls[0] = (byte) 0xca; cls[1] = (byte) 0xfe; cls[2] = (byte) 0xba; cls[3] = (byte) 0xbe;
+	    out.addbytes(cls);
+	    break;
+	}
+	case "codeentry": {
+	    out.adduint8(1);
+	    for (int i = 1 + rnd.nextInt(4); i > 0; i--) {
+		out.addstring(words(rnd, 1));
+		out.addstring("Gen" + rnd.nextInt(8));
+	    }
+	    out.adduint8(0);
+	    out.adduint8(0);
+	    break;
+	}
+	case "audio": {
+	    byte[] ogg = new byte[Math.max(4, budget)];
+	    rnd.nextBytes(ogg);
+	    ogg[0] = 'O'; ogg[1] = 'g'; ogg[2] = 'g'; ogg[3] = 'S';
+	    out.addbytes(ogg);
+	    break;
+	}
+	case "overlay": {
+	    out.adduint8(1);
+	    out.adduint8(8);	/* T_TTOL */
+	    out.adduint8(2);	/* T_STR */
+	    out.addstring("tags");
+	    for (int i = 1 + rnd.nextInt(3); i > 0; i--) {
+		out.adduint8(2);
+		out.addstring(words(rnd, 1));
+	    }
+	    out.adduint8(0);	/* T_END */
+	    out.adduint8(8);
+	    out.adduint8(2);
+	    out.addstring("mat");
+	    out.adduint8(1);	/* T_INT */
+	    out.addint32(rnd.nextInt(16));
+	    out.adduint8(0);
+	    out.adduint8(0);
+	    break;
+	}
+	case "tooltip":
+	    out.addstring2(words(rnd, 1 + rnd.nextInt(8)));
+	    break;
+	case "pagina":
+	    out.addstring2(words(rnd, Math.max(1, Math.min(budget / 6, 4096))));
+	    break;
+	default:
+	    throw (new IllegalArgumentException("Unknown layer type: " + type));
+	}
+    }
+
+    /* A noisy ARGB image that compresses to roughly budget bytes */
+    static byte[] png(Random rnd, int budget) throws IOException {
+	int side = Math.max(4, Math.min(1024, (int) Math.sqrt(budget / 4)));
+	int w = side + rnd.nextInt(side / 4 + 1), h = side;
+	BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+	int[] row = new int[w];
+	for (int y = 0; y < h; y++) {
+	    for (int x = 0; x < w; x++)
+		row[x] = rnd.nextInt();
+	    img.setRGB(0, y, w, 1, row, 0, w);
+	}
+	return (PNG.encode(img));
+    }
+
+    static String words(Random rnd, int n) {
+	StringBuilder buf = new StringBuilder();
+	for (int i = 0; i < n; i++) {
+	    if (i > 0) buf.append(' ');
+	    for (int o = 2 + rnd.nextInt(7); o > 0; o--)
+		buf.append((char) ('a' + rnd.nextInt(26)));
+	}
+	return (buf.toString());
+    }
+
+    static byte[] strz(String s) {
+	byte[] b = s.getBytes(StandardCharsets.UTF_8);
+	return (Arrays.copyOf(b, b.length + 1));
+    }
+
+}
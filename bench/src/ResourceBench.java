@@ -0,0 +1,194 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+import haven.Resource;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/* End-to-end throughput of Resource.load, decodeall, loadfromdecode and
+ * encodeall, per layer mix. Runs the same way as a JMH throughput
+ * benchmark: timed warmup iterations, then timed measurement
+ * iterations, each reporting resources/s and MB/s of .res data. */
+public class ResourceBench {
+    static final String U = "Usage: ResourceBench [-w WARMUPS] [-i ITERATIONS] [-t SECONDS] [-b BENCH,...] [-m MIX,...]\n" +
+	"  BENCH is load, decode, loadfromdecode or encode\n" +
+	"  MIX is image, text, code or audio\n";
+
+    /* Keeps results alive so the JIT can't drop the work */
+    static volatile Object sink;
+
+    interface Op {
+	void run() throws Exception;
+    }
+
+    enum Mix {
+	IMAGE, TEXT, CODE, AUDIO;
+
+	String key() {
+	    return (name().toLowerCase());
+	}
+    }
+
+    static final String[] BENCHES = {"load", "decode", "loadfromdecode", "encode"};
+
+    static int warmups = 3, iterations = 5;
+    static long time = 1000;
+
+    public static void main(String[] args) throws Exception {
+	List<String> benches = Arrays.asList(BENCHES);
+	List<Mix> mixes = Arrays.asList(Mix.values());
+	for (int i = 0; i < args.length; i++) {
+	    switch (args[i]) {
+	    case "-w":
+		warmups = Integer.parseInt(args[++i]);
+		break;
+	    case "-i":
+		iterations = Integer.parseInt(args[++i]);
+		break;
+	    case "-t":
+		time = (long) (Double.parseDouble(args[++i]) * 1000);
+		break;
+	    case "-b":
+		benches = Arrays.asList(args[++i].split(","));
+		break;
+	    case "-m":
+		mixes = new ArrayList<Mix>();
+		for (String m : args[++i].split(","))
+		    mixes.add(Mix.valueOf(m.toUpperCase()));
+		break;
+	    default:
+		System.out.print(U);
+		return;
+	    }
+	}
+	Resource.OUT = "";
+	File tmp = Files.createTempDirectory("layerutil-bench").toFile();
+	try {
+	    System.out.println(String.format("%-16s %-6s %6s %12s %10s %10s", "bench", "mix", "iters", "res/s", "+-", "MB/s"));
+	    for (String b : benches) {
+		for (Mix m : mixes)
+		    run(b, m, tmp);
+	    }
+	} finally {
+	    delete(tmp.toPath());
+	}
+    }
+
+    static void run(String bench, Mix mix, File tmp) throws Exception {
+	byte[] data = new CorpusGen(profile(mix)).res(0);
+	String name = "/" + mix.key() + ".res";
+	String dout = new File(tmp, "dec").getPath();
+	String eout = new File(tmp, "enc").getPath();
+	/* Both the decode and encode side need a decoded copy to start from */
+	new Resource(data, name, dout).decodeall();
+	String dres = dout + name;
+	Op op;
+	switch (bench) {
+	case "load":
+	    op = () -> sink = new Resource(data, name, dout);
+	    break;
+	case "decode":
+	    op = () -> new Resource(data, name, dout).decodeall();
+	    break;
+	case "loadfromdecode":
+	    op = () -> sink = new Resource(dres, name, eout, false);
+	    break;
+	case "encode": {
+	    Resource r = new Resource(dres, name, eout, false);
+	    op = () -> r.encodeall();
+	    break;
+	}
+	default:
+	    throw (new IllegalArgumentException("Unknown benchmark: " + bench));
+	}
+	for (int i = 0; i < warmups; i++)
+	    iteration(op);
+	double[] rate = new double[iterations];
+	for (int i = 0; i < iterations; i++)
+	    rate[i] = iteration(op);
+	double mean = 0, var = 0;
+	for (double r : rate)
+	    mean += r / rate.length;
+	for (double r : rate)
+	    var += (r - mean) * (r - mean) / Math.max(1, rate.length - 1);
+	System.out.println(String.format("%-16s %-6s %6d %12.1f %10.1f %10.2f", bench, mix.key(), iterations,
+					 mean, Math.sqrt(var), mean * data.length / 1e6));
+    }
+
+    /* Runs op for one iteration's worth of time, returning ops/s */
+    static double iteration(Op op) throws Exception {
+	long start = System.nanoTime(), end = start + time * 1000000L, now;
+	long n = 0;
+	do {
+	    op.run();
+	    n++;
+	} while ((now = System.nanoTime()) < end);
+	return (n / ((now - start) / 1e9));
+    }
+
+    /* CorpusGen profile for each mix: one mid-sized resource of the
+     * mix's layer types */
+    static CorpusGen.Profile profile(Mix mix) {
+	Properties p = new Properties();
+	p.setProperty("size.sigma", "0");
+	switch (mix) {
+	case IMAGE:
+	    p.setProperty("size.median", "262144");
+	    p.setProperty("mix.image", "8");
+	    p.setProperty("mix.tooltip", "1");
+	    break;
+	case TEXT:
+	    p.setProperty("size.median", "16384");
+	    p.setProperty("mix.tooltip", "8");
+	    p.setProperty("mix.pagina", "2");
+	    p.setProperty("mix.action", "1");
+	    p.setProperty("mix.tileset", "1");
+	    break;
+	case CODE:
+	    p.setProperty("size.median", "65536");
+	    p.setProperty("mix.code", "6");
+	    p.setProperty("mix.codeentry", "1");
+	    break;
+	case AUDIO:
+	    p.setProperty("size.median", "1048576");
+	    p.setProperty("mix.audio", "1");
+	    break;
+	}
+	return (CorpusGen.Profile.of(p));
+    }
+
+    static void delete(Path root) throws IOException {
+	Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+		public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+		    Files.delete(f);
+		    return (FileVisitResult.CONTINUE);
+		}
+
+		public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+		    Files.delete(d);
+		    return (FileVisitResult.CONTINUE);
+		}
+	    });
+    }
+}
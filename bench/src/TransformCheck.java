@@ -0,0 +1,96 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+import haven.Header;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/* Checks that -transform keeps a layer whose new payload is empty,
+ * both from a replace rule and from a text rule that removes all of
+ * the text. Works in a temporary directory and exits with status 1 on
+ * failure. */
+public class TransformCheck {
+    public static void main(String[] args) throws Exception {
+	Path tmp = Files.createTempDirectory("transformcheck");
+	try {
+	    check(tmp);
+	    System.out.println("TransformCheck OK");
+	} catch (AssertionError e) {
+	    System.out.println("TransformCheck FAILED: " + e.getMessage());
+	    System.exit(1);
+	} finally {
+	    delete(tmp);
+	}
+    }
+
+    static void check(Path tmp) throws Exception {
+	Properties p = new Properties();
+	p.setProperty("count", "1");
+	p.setProperty("layers.max", "1");
+	p.setProperty("mix.tooltip", "1");
+	CorpusGen gen = new CorpusGen(CorpusGen.Profile.of(p));
+	LayerUtil.print = false;
+	Path in = tmp.resolve("in.res");
+	Files.write(in, gen.res(0));
+	Header h = Header.read(in.toFile());
+	check(h.layers.size() == 1 && h.layers.get(0).type.equals("tooltip"), "generated resource has no single tooltip layer");
+	byte[] data = Files.readAllBytes(in);
+	Header.Layer l = h.layers.get(0);
+	String text = new String(data, (int) l.off, l.len, StandardCharsets.UTF_8);
+
+	Path empty = tmp.resolve("empty.bin");
+	Files.write(empty, new byte[0]);
+	empty(tmp, in, "replace tooltip 0 \"" + quote(empty.toString()) + "\"", "replace");
+	empty(tmp, in, "text tooltip \"" + quote(text) + "\" \"\"", "text");
+    }
+
+    static void empty(Path tmp, Path in, String rule, String what) throws Exception {
+	Path out = tmp.resolve(what + ".res");
+	new Transform(new BufferedReader(new StringReader(rule))).run(in, out);
+	Header h = Header.read(out.toFile());
+	check(h.layers.size() == 1, "empty " + what + " left " + h.layers.size() + " layers");
+	check(h.layers.get(0).type.equals("tooltip") && h.layers.get(0).len == 0, "empty " + what + " wrote a " + h.layers.get(0).len + " byte " + h.layers.get(0).type);
+	check(Files.size(out) == h.size, "empty " + what + " left trailing bytes");
+    }
+
+    static String quote(String s) {
+	return (s.replace("\\", "\\\\").replace("\"", "\\\""));
+    }
+
+    static void check(boolean c, String msg) {
+	if (!c)
+	    throw (new AssertionError(msg));
+    }
+
+    static void delete(Path p) throws IOException {
+	try (Stream<Path> s = Files.walk(p)) {
+	    for (Path f : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator)
+		Files.delete(f);
+	}
+    }
+}
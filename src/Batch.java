@@ -0,0 +1,516 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+import haven.Manifest;
+import haven.Resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/* One -rd/-re run over the resources found below IN */
+class Batch {
+    final String in, out;
+    final int in_len, fl;
+    final Ordered log = new Ordered();
+    final Manifest manifest;
+
+    Batch(String in, String out, int fl) {
+	this.in = in;
+	this.in_len = in.length();
+	this.out = out;
+	this.fl = fl;
+	this.manifest = Manifest.load(out);
+    }
+
+    /* Decoding looks for *.res files, encoding for decoded *.res directories */
+    boolean match(Path p, boolean dir) {
+	String n = p.getFileName() == null ? "" : p.getFileName().toString();
+	return ((dir == (fl == 1)) && (n.endsWith(".res") || n.endsWith(".cache")));
+    }
+
+    void run() throws Exception {
+	try {
+	    run(Paths.get(in));
+	} finally {
+	    manifest.save();
+	}
+    }
+
+    void run(Path root) throws Exception {
+	if (LayerUtil.pipe != null) {
+	    new Pipeline().run(root, LayerUtil.pipe[0], LayerUtil.pipe[1], LayerUtil.pipe[2]);
+	} else if (LayerUtil.jobs > 1) {
+	    ForkJoinPool pool = new ForkJoinPool(LayerUtil.jobs);
+	    try {
+		pool.invoke(new Scan(root, log.root, null));
+	    } finally {
+		pool.shutdown();
+	    }
+	} else {
+	    walk(root);
+	}
+    }
+
+    /* Single threaded: process files in the same sorted, depth first
+     * order the parallel scan prints them in */
+    void walk(Path p) {
+	boolean dir = Files.isDirectory(p);
+	if (match(p, dir)) {
+	    if (dir || Files.isRegularFile(p))
+		process(p.toString(), System.out, System.err);
+	} else if (dir) {
+	    for (Path e : list(p))
+		walk(e);
+	}
+    }
+
+    /* The entries of a directory, sorted by name */
+    static List<Path> list(Path p) {
+	List<Path> ents = new ArrayList<Path>();
+	try (DirectoryStream<Path> ds = Files.newDirectoryStream(p)) {
+	    for (Path e : ds)
+		ents.add(e);
+	} catch (IOException | DirectoryIteratorException e) {
+	    System.out.println("Error reading " + p + ": " + e);
+	}
+	Collections.sort(ents);
+	return (ents);
+    }
+
+    void process(String s, PrintStream o, PrintStream err) {
+	long st = System.nanoTime();
+	try {
+	    String name = s.substring(in_len);
+	    Manifest.Entry fp = check(s, name, o);
+	    if (fp == null)
+		return;
+	    if (LayerUtil.print) o.println("ATTEMPT => " + name);
+	    if (fl == 1) {
+		Resource r = load(s, name);
+		r.encodeall();
+		fp.layers = r.lrecs;
+		record(s, name, fp, null);
+	    } else {
+		byte[] data = Files.readAllBytes(Paths.get(s));
+		new Resource(data, "/" + name, out).decodeall();
+		record(s, name, fp, data);
+	    }
+	    if (Resource.stats != null) Resource.stats.file(s, System.nanoTime() - st);
+	} catch (Exception e) {
+	    o.print("Error loading file " + s);
+	    e.printStackTrace(err);
+	}
+    }
+
+    /* Returns null when the resource is up to date, or else the current
+     * fingerprint of its input to record once it has been processed.
+     * Up to date also means its output is still the one recorded. A
+     * resource the manifest doesn't know yet falls back to comparing
+     * against the mtimes of its existing output. */
+    Manifest.Entry check(String s, String name, PrintStream o) throws IOException {
+	File f = new File(s);
+	Manifest.Entry cur = Manifest.stat(f);
+	if(!LayerUtil.skip)
+	    return cur;
+	Manifest.Entry old = manifest.get(name);
+	boolean same;
+	if (old == null) {
+	    if (same = (getDate(out+name) > cur.mtime))
+		record(s, name, cur, null);
+	} else if (fl == 0 && !Objects.equals(old.filter, Resource.filter())) {
+	    /* Decoded with other layers than this run wants */
+	    same = false;
+	} else if (fl == 1 && !Objects.equals(old.enc, Resource.encoding())) {
+	    /* Encoded with other PNG settings than this run's */
+	    same = false;
+	} else if (!written(name, old)) {
+	    /* Output deleted or changed since it was recorded */
+	    same = false;
+	} else if (cur.same(old)) {
+	    same = true;
+	} else if (cur.size == old.size) {
+	    cur.hash = Manifest.hash(f);
+	    if (same = cur.hash.equals(old.hash)) {
+		cur.osize = old.osize;
+		cur.omtime = old.omtime;
+		cur.layers = old.layers;
+		cur.filter = old.filter;
+		cur.enc = old.enc;
+		manifest.put(name, cur);
+	    }
+	} else {
+	    same = false;
+	}
+	if (same) {
+	    if (LayerUtil.print_skips) o.println("SKIPPED => " + name);
+	    return null;
+	}
+	return cur;
+    }
+
+    /* Loads a decoded directory, reusing unchanged layers from the .res
+     * written by the last run when that file is still the one recorded
+     * and was encoded with the same settings */
+    Resource load(String s, String name) throws Exception {
+	Manifest.Entry old = manifest.get(name);
+	if (LayerUtil.skip && old != null && old.layers != null && Objects.equals(old.enc, Resource.encoding())) {
+	    File res = new File(out + name);
+	    if (res.length() == old.osize && res.lastModified() == old.omtime)
+		return new Resource(s, "/" + name, out, old.layers);
+	}
+	return new Resource(s, "/" + name, out, false);
+    }
+
+    void record(String s, String name, Manifest.Entry fp, byte[] data) throws IOException {
+	if (fp.hash == null)
+	    fp.hash = (data != null) ? Manifest.hash(data) : Manifest.hash(new File(s));
+	Manifest.Entry o = Manifest.stat(output(name));
+	if (fl == 0)
+	    fp.filter = Resource.filter();
+	else
+	    fp.enc = Resource.encoding();
+	fp.osize = o.size;
+	fp.omtime = o.mtime;
+	manifest.put(name, fp);
+    }
+
+    /* The .res file written by -re, or the meta file of a -rd directory */
+    File output(String name) {
+	return (new File(out + name + ((fl == 1) ? "" : "/meta")));
+    }
+
+    boolean written(String name, Manifest.Entry old) {
+	Manifest.Entry o = Manifest.stat(output(name));
+	return (o.size == old.osize && o.mtime == old.omtime);
+    }
+
+    private static long getDate(String name) {
+	return getDate(new File(name));
+    }
+
+    private static long getDate(File file) {
+	if(file.exists()){
+	    if(file.isFile()){
+		return file.lastModified();
+	    } else {
+		long date = 0;
+		for (File s : file.listFiles())
+		    date = Math.max(date, getDate(s));
+		return date;
+	    }
+	}
+	return 0;
+    }
+
+    /* Prints the output of each file in scan order (sorted by name
+     * within a directory, depth first) as soon as everything before it
+     * has finished. Directories are added as the scan reaches them, so
+     * printing starts long before the scan is done. */
+    static class Ordered {
+	static class Dir {
+	    final Dir parent;
+	    Object[] slots = null;
+	    int pos = 0;
+
+	    Dir(Dir parent) {
+		this.parent = parent;
+	    }
+	}
+
+	final Dir root = new Dir(null);
+	private Dir cur = root;
+
+	/* slots holds a Dir for each subdirectory and null for each file */
+	synchronized void listed(Dir d, Object[] slots) {
+	    d.slots = slots;
+	    drain();
+	}
+
+	synchronized void done(Dir d, int i, String log) {
+	    d.slots[i] = log;
+	    drain();
+	}
+
+	private void drain() {
+	    while (cur != null && cur.slots != null) {
+		if (cur.pos >= cur.slots.length) {
+		    cur = cur.parent;
+		    if (cur != null) cur.slots[cur.pos++] = "";
+		    continue;
+		}
+		Object s = cur.slots[cur.pos];
+		if (s == null)
+		    break;
+		if (s instanceof Dir) {
+		    cur = (Dir) s;
+		    continue;
+		}
+		System.out.print((String) s);
+		cur.slots[cur.pos++] = "";
+	    }
+	    System.out.flush();
+	}
+    }
+
+    static String capture(PrintStream o, ByteArrayOutputStream buf) {
+	o.flush();
+	return (buf.toString());
+    }
+
+    /* Lists one directory and forks a task per subdirectory and per
+     * matching file, so idle workers steal both scanning and processing
+     * work. With a pipeline, matches are queued for its readers instead. */
+    class Scan extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	final Path p;
+	final Ordered.Dir d;
+	final Pipeline pipe;
+
+	Scan(Path p, Ordered.Dir d, Pipeline pipe) {
+	    this.p = p;
+	    this.d = d;
+	    this.pipe = pipe;
+	}
+
+	protected void compute() {
+	    List<Path> ents = new ArrayList<Path>();
+	    if (d == log.root && (match(p, Files.isDirectory(p)))) {
+		ents.add(p);
+	    } else if (Files.isDirectory(p)) {
+		ents = list(p);
+	    }
+	    Object[] slots = new Object[ents.size()];
+	    List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+	    List<Job> jobs = new ArrayList<Job>();
+	    int n = 0;
+	    for (Path e : ents) {
+		boolean dir = Files.isDirectory(e);
+		if (match(e, dir)) {
+		    final int i = n++;
+		    final String s = e.toString();
+		    if (pipe != null) {
+			jobs.add(new Job(d, i, s, s.substring(in_len)));
+		    } else {
+			tasks.add(new RecursiveAction() {
+				protected void compute() {
+				    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				    PrintStream o = new PrintStream(buf, true);
+				    process(s, o, o);
+				    log.done(d, i, capture(o, buf));
+				}
+			    });
+		    }
+		} else if (dir) {
+		    Ordered.Dir sub = new Ordered.Dir(d);
+		    slots[n++] = sub;
+		    tasks.add(new Scan(e, sub, pipe));
+		}
+	    }
+	    Object[] used = new Object[n];
+	    System.arraycopy(slots, 0, used, 0, n);
+	    log.listed(d, used);
+	    for (Job j : jobs)
+		pipe.put(pipe.readq, j);
+	    invokeAll(tasks);
+	}
+    }
+
+    static class Job {
+	final Ordered.Dir d;
+	final int i;
+	final String s, name;
+	final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	final PrintStream o = new PrintStream(buf, true);
+	byte[] data;
+	Resource r;
+	Manifest.Entry fp;
+	/* Time spent on this file in all stages */
+	long ns = 0;
+
+	Job(Ordered.Dir d, int i, String s, String name) {
+	    this.d = d;
+	    this.i = i;
+	    this.s = s;
+	    this.name = name;
+	}
+    }
+
+    /* Runs file reads, parsing/encoding and output writes on separate
+     * thread groups joined by bounded queues, so that disk and CPU work
+     * on different files overlap. The directory scan feeds the readers
+     * while it is still running. */
+    class Pipeline {
+	final Job END = new Job(null, -1, null, null);
+	BlockingQueue<Job> readq, parseq, writeq;
+	/* First error that stopped a stage thread, rethrown by run() */
+	private Throwable failed = null;
+
+	void run(Path root, int nr, int np, int nw) throws Exception {
+	    readq = new ArrayBlockingQueue<Job>(nr * 4);
+	    parseq = new ArrayBlockingQueue<Job>(np * 2);
+	    writeq = new ArrayBlockingQueue<Job>(nw * 2);
+	    Thread[] rd = start("read", nr, () -> stage(readq, parseq, 0));
+	    Thread[] ps = start("parse", np, () -> stage(parseq, writeq, 1));
+	    Thread[] wr = start("write", nw, () -> stage(writeq, null, 2));
+	    ForkJoinPool pool = new ForkJoinPool(nr);
+	    try {
+		pool.invoke(new Scan(root, log.root, this));
+	    } finally {
+		pool.shutdown();
+		/* Every stage gets its END even if the scan failed */
+		finish(readq, rd);
+		finish(parseq, ps);
+		finish(writeq, wr);
+	    }
+	    Throwable t;
+	    synchronized (this) {
+		t = failed;
+	    }
+	    if (t instanceof Error)
+		throw ((Error) t);
+	    if (t != null)
+		throw (new Exception("Pipeline stage failed", t));
+	}
+
+	Thread[] start(String name, int n, Runnable task) {
+	    Thread[] ret = new Thread[n];
+	    for (int i = 0; i < n; ++i) {
+		ret[i] = new Thread(task, name + "-" + i);
+		ret[i].start();
+	    }
+	    return (ret);
+	}
+
+	void finish(BlockingQueue<Job> q, Thread[] th) throws InterruptedException {
+	    for (int i = 0; i < th.length; ++i)
+		q.put(END);
+	    for (Thread t : th)
+		t.join();
+	}
+
+	void stage(BlockingQueue<Job> from, BlockingQueue<Job> to, int st) {
+	    try {
+		work(from, to, st);
+	    } catch (Throwable t) {
+		synchronized (this) {
+		    if (failed == null)
+			failed = t;
+		}
+		/* Keep taking jobs until END, so that the stages feeding
+		 * this one and finish() never block on a dead thread */
+		Job j;
+		while ((j = take(from)) != END) {
+		    j.o.println("Skipped " + j.s + " after an earlier error");
+		    done(j);
+		}
+	    }
+	}
+
+	Job take(BlockingQueue<Job> q) {
+	    while (true) {
+		try {
+		    return (q.take());
+		} catch (InterruptedException e) {
+		}
+	    }
+	}
+
+	void work(BlockingQueue<Job> from, BlockingQueue<Job> to, int st) throws InterruptedException {
+	    while (true) {
+		Job j = from.take();
+		if (j == END)
+		    return;
+		long t0 = System.nanoTime();
+		try {
+		    if (st == 0) {
+			if ((j.fp = check(j.s, j.name, j.o)) == null) {
+			    done(j);
+			    continue;
+			}
+			if (LayerUtil.print) j.o.println("ATTEMPT => " + j.name);
+			if (fl == 1) {
+			    j.r = load(j.s, j.name);
+			} else {
+			    j.data = Files.readAllBytes(Paths.get(j.s));
+			}
+		    } else if (st == 1) {
+			if (fl == 1) {
+			    j.data = j.r.encode();
+			} else {
+			    j.r = new Resource(j.data, "/" + j.name, out);
+			    j.fp.hash = Manifest.hash(j.data);
+			    j.data = null;
+			}
+		    } else {
+			if (fl == 1) {
+			    j.r.encodeall(j.data);
+			    j.fp.layers = j.r.lrecs;
+			} else {
+			    j.r.decodeall();
+			}
+			record(j.s, j.name, j.fp, null);
+			if (Resource.stats != null) Resource.stats.file(j.s, j.ns + System.nanoTime() - t0);
+		    }
+		} catch (Exception e) {
+		    j.o.print("Error loading file " + j.s);
+		    e.printStackTrace(j.o);
+		    done(j);
+		    continue;
+		} catch (Error e) {
+		    j.o.print("Error loading file " + j.s);
+		    e.printStackTrace(j.o);
+		    done(j);
+		    throw (e);
+		}
+		j.ns += System.nanoTime() - t0;
+		if (to != null) {
+		    to.put(j);
+		} else {
+		    done(j);
+		}
+	    }
+	}
+
+	void put(BlockingQueue<Job> q, Job j) {
+	    try {
+		q.put(j);
+	    } catch (InterruptedException e) {
+		throw (new RuntimeException(e));
+	    }
+	}
+
+	void done(Job j) {
+	    log.done(j.d, j.i, capture(j.o, j.buf));
+	}
+    }
+}
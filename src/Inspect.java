@@ -0,0 +1,97 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+import com.google.gson.GsonBuilder;
+import haven.Header;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* -ls and -lsr: lists the layers of .res files from their headers
+ * alone, without loading or decoding any payload */
+class Inspect {
+    static class Res {
+	String file;
+	int ver;
+	long size;
+	List<Header.Layer> layers;
+	String error;
+    }
+
+    final boolean json;
+
+    Inspect(boolean json) {
+	this.json = json;
+    }
+
+    void ls(List<String> files, PrintStream out) {
+	print(files.parallelStream().map(Inspect::inspect).collect(Collectors.toList()), out);
+    }
+
+    void lsr(String dir, PrintStream out) throws IOException {
+	List<String> files;
+	try (Stream<Path> s = Files.walk(Paths.get(dir), FileVisitOption.FOLLOW_LINKS)) {
+	    files = s.filter(p -> (p.toString().endsWith(".res") || p.toString().endsWith(".cache")) && Files.isRegularFile(p))
+		.map(Path::toString).sorted().collect(Collectors.toList());
+	}
+	ls(files, out);
+    }
+
+    static Res inspect(String file) {
+	Res r = new Res();
+	r.file = file;
+	try {
+	    Header h = Header.read(new File(file));
+	    r.ver = h.ver;
+	    r.size = h.size;
+	    r.layers = h.layers;
+	} catch (IOException e) {
+	    r.error = e.toString();
+	}
+	return (r);
+    }
+
+    void print(List<Res> res, PrintStream out) {
+	if (json) {
+	    out.println(new GsonBuilder().setPrettyPrinting().create().toJson(res));
+	    return;
+	}
+	out.println(String.format("%-48s %5s %4s %-12s %10s %10s", "file", "ver", "n", "type", "offset", "length"));
+	for (Res r : res) {
+	    if (r.error != null) {
+		out.println(String.format("%-48s error: %s", r.file, r.error));
+		continue;
+	    }
+	    if (r.layers.isEmpty())
+		out.println(String.format("%-48s %5d", r.file, r.ver));
+	    Map<String, Integer> n = new HashMap<String, Integer>();
+	    for (Header.Layer l : r.layers) {
+		int i = n.merge(l.type, 1, Integer::sum) - 1;
+		out.println(String.format("%-48s %5d %4d %-12s %10d %10d", r.file, r.ver, i, l.type, l.off, l.len));
+	    }
+	}
+    }
+}
@@ -19,10 +19,23 @@
  *  Boston, MA 02111-1307 USA
  */
 
+import haven.PNG;
 import haven.Resource;
+import haven.Stats;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class LayerUtil {
     static final String VERSION = "LayerUtil version - 2.0.0";
@@ -31,12 +44,38 @@ public class LayerUtil {
 	    + " -ns             Do not skip processing older files."
 	    + " -np             Do not print files being processed."
 	    + " -ps             Print files being skipped."
+	    + " -j [N]          Process -rd/-re files on N worker threads.\n"
+	    + " -pipe [R,P,W]   Process -rd/-re files in a read/parse/write pipeline\n"
+	    + "                 with R, P and W threads per stage (overrides -j).\n"
+	    + " -stats [FILE]   Print time spent per layer type and the slowest\n"
+	    + "                 resources, and write the same report to FILE as JSON.\n"
+	    + " -only [TYPES]   Only load these layer types when decoding, e.g.\n"
+	    + "                 `-only tooltip,pagina,action'.\n"
+	    + " -exclude [TYPES] Never load these layer types when decoding.\n"
+	    + " -json           Print -ls and -lsr listings as JSON.\n"
+	    + " -recompress     Re-encode source PNGs when encoding instead of\n"
+	    + "                 embedding the files as they are.\n"
+	    + " -pnglevel [N]   Deflate level 0-9 for PNGs LayerUtil encodes itself.\n"
+	    + " -pngfilter [F]  PNG row filter: none, sub, up, average, paeth or\n"
+	    + "                 adaptive (the default).\n"
 	    + " -h              Display usage\n" + " -v              Displays version number\n"
 	    + " -d [FILE]...    Decodes said files to `dout/[FILE]/*'\n"
 	    + " -e [FILE]...    Encodes said files to `dres/[FILE]/*'\n"
 	    + " -rd [IN] [OUT]  Decodes a set of files within IN into OUT\n"
-	    + " -re [IN] [OUT]  Encodes a set of files within IN into OUT\n\n"
-	    + "[FILE] refers to individual *.res files\n"
+	    + " -re [IN] [OUT]  Encodes a set of files within IN into OUT\n"
+	    + " -watch [IN] [OUT] Encodes IN into OUT, then keeps re-encoding\n"
+	    + "                 each resource in IN as it changes\n"
+	    + " -jobs [SPEC]    Runs every -d, -e, -rd and -re line in SPEC\n"
+	    + " -ls [FILE]...   Lists the layers of said files from their headers\n"
+	    + " -lsr [DIR]      Lists the layers of every *.res or *.cache file within DIR\n"
+	    + " -transform [RULES] [IN] [OUT] Rewrites the *.res file or files within\n"
+	    + "                 IN into OUT by the rules in RULES, without decoding:\n"
+	    + "                   drop TYPE\n"
+	    + "                   replace TYPE N FILE\n"
+	    + "                   text TYPE FROM TO   (tooltip and pagina)\n\n"
+	    + "[FILE] refers to individual *.res files, `@LIST' to every file\n"
+	    + "named in LIST (one per line) and `-' to every file named on stdin\n"
+	    + "[SPEC] is a file or `-' for stdin\n"
 	    + "[IN] and [OUT] refer to file directorys that contain *.res files\n";
     static final String SF[] = {
 	    "Invalid arguments\n" + "Usage: java -jar LayerUtil.jar [MOD_FLAGS] -d [FILE]...\n"
@@ -47,7 +86,18 @@ public class LayerUtil {
 	    "Invalid arguments\n" + "Usage: java -jar LayerUtil.jar [MOD_FLAGS] -rd [IN] [OUT]\n"
 		    + "Type `java -jar LayerUtil.jar -h' for more information\n",
 	    "Invalid arguments\n" + "Usage: java -jar LayerUtil.jar [MOD_FLAGS] -re [IN] [OUT]\n"
+		    + "Type `java -jar LayerUtil.jar -h' for more information\n",
+	    "Invalid arguments\n" + "Usage: java -jar LayerUtil.jar [MOD_FLAGS] -watch [IN] [OUT]\n"
+		    + "Type `java -jar LayerUtil.jar -h' for more information\n" };
+    static final String LF[] = {
+	    "Invalid arguments\n" + "Usage: java -jar LayerUtil.jar [MOD_FLAGS] -ls [FILE]...\n"
+		    + "Type `java -jar LayerUtil.jar -h' for more information\n",
+	    "Invalid arguments\n" + "Usage: java -jar LayerUtil.jar [MOD_FLAGS] -lsr [DIR]\n"
 		    + "Type `java -jar LayerUtil.jar -h' for more information\n" };
+    static final String TF = "Invalid arguments\n" + "Usage: java -jar LayerUtil.jar [MOD_FLAGS] -transform [RULES] [IN] [OUT]\n"
+	    + "Type `java -jar LayerUtil.jar -h' for more information\n";
+    static final String JF = "Invalid arguments\n" + "Usage: java -jar LayerUtil.jar [MOD_FLAGS] -jobs [SPEC]\n"
+	    + "Type `java -jar LayerUtil.jar -h' for more information\n";
     static final String NOF = "No options found\n" + "Type `java -jar LayerUtil.jar -h' for more information\n";
     static final String IVU = "Invalid usage of LayerUtil\n"
 	    + "Type `java -jar LayerUtil.jar -h' for more information\n";
@@ -55,6 +105,10 @@ public class LayerUtil {
     static boolean skip = true;
     static boolean print = true;
     static boolean print_skips = false;
+    static int jobs = 1;
+    static int[] pipe = null;
+    static String stats = null;
+    static boolean json = false;
     
     public static void main(String args[]) {
 	try {
@@ -75,12 +129,72 @@ public class LayerUtil {
 		    case "-ps":
 			print_skips = true;
 			break;
+		    case "-json":
+			json = true;
+			break;
+		    case "-recompress":
+			Resource.recompress = true;
+			break;
+		    case "-pnglevel":
+			if (i + 1 >= args.length || (PNG.level = atoi(args[++i])) < 0 || PNG.level > 9) {
+			    System.out.print(IVU);
+			    System.exit(1);
+			}
+			break;
+		    case "-pngfilter":
+			if (i + 1 >= args.length || (PNG.filter = PNG.filter(args[++i])) == null) {
+			    System.out.print(IVU);
+			    System.exit(1);
+			}
+			break;
+		    case "-j":
+			if (i + 1 >= args.length || (jobs = atoi(args[++i])) < 1) {
+			    System.out.print(IVU);
+			    System.exit(1);
+			}
+			break;
+		    case "-stats":
+			if (i + 1 >= args.length) {
+			    System.out.print(IVU);
+			    System.exit(1);
+			}
+			stats = args[++i];
+			Resource.stats = new Stats();
+			break;
+		    case "-only":
+		    case "-exclude":
+			if (i + 1 >= args.length) {
+			    System.out.print(IVU);
+			    System.exit(1);
+			}
+			Set<String> types = new HashSet<String>(Arrays.asList(args[i + 1].split(",")));
+			if (args[i].equals("-only"))
+			    Resource.only = types;
+			else
+			    Resource.exclude = types;
+			++i;
+			break;
+		    case "-pipe":
+			pipe = new int[3];
+			String[] n = (i + 1 < args.length) ? args[++i].split(",") : new String[0];
+			for (int j = 0; j < pipe.length; ++j) {
+			    if (n.length != pipe.length || (pipe[j] = atoi(n[j])) < 1) {
+				System.out.print(IVU);
+				System.exit(1);
+			    }
+			}
+			break;
 		    case "-v":
 		    case "-h":
 		    case "-d":
 		    case "-e":
 		    case "-rd":
 		    case "-re":
+		    case "-watch":
+		    case "-jobs":
+		    case "-ls":
+		    case "-lsr":
+		    case "-transform":
 			done = true;
 			break;
 		    default:
@@ -111,9 +225,38 @@ public class LayerUtil {
 		case "-re":
 		    rf(i, args, 1);
 		    break;
+		case "-watch":
+		    watch(i, args);
+		    break;
+		case "-jobs":
+		    jobs(i, args);
+		    break;
+		case "-ls":
+		    if (args.length < i + 2) {
+			System.out.print(LF[0]);
+			System.exit(0);
+		    }
+		    List<String> ls = new ArrayList<String>();
+		    files(i, args, ls::add);
+		    new Inspect(json).ls(ls, System.out);
+		    break;
+		case "-lsr":
+		    if (args.length < i + 2) {
+			System.out.print(LF[1]);
+			System.exit(0);
+		    }
+		    new Inspect(json).lsr(args[i + 1], System.out);
+		    break;
+		case "-transform":
+		    transform(i, args);
+		    break;
 		default:
 		    System.out.print(IVU);
 	    }
+	    if (stats != null) {
+		Resource.stats.report(System.out);
+		Resource.stats.json(new File(stats));
+	    }
 	} catch (Exception e) {
 	    e.printStackTrace();
 	    System.exit(1);
@@ -122,6 +265,14 @@ public class LayerUtil {
 	System.exit(0);
     }
 
+    static int atoi(String a) {
+	try {
+	    return(Integer.parseInt(a));
+	} catch(NumberFormatException e) {
+	    return(0);
+	}
+    }
+
     static void usage() {
 	System.out.print(U);
 	System.exit(0);
@@ -133,20 +284,76 @@ public class LayerUtil {
 	    System.exit(0);
 	}
 
-	int i;
-	Resource r;
-	for (i = st + 1; i < args.length; ++i) {
-	    try {
-		System.out.println("ATTEMPT => " + args[i]);
-		r = new Resource(args[i], args[i], fl == 1 ? "nres//" : "dout//", fl == 1 ? false : true);
-		if (fl == 1) {
-		    r.encodeall();
+	files(st, args, f -> sf1(f, fl));
+    }
+
+    /* Passes each file named after args[st] to `to' as soon as it is
+     * read, with `@LIST' and `-' expanded line by line */
+    static void files(int st, String[] args, Consumer<String> to) {
+	for (int i = st + 1; i < args.length; ++i) {
+	    if (args[i].equals("-") || args[i].startsWith("@")) {
+		try (BufferedReader br = lines(args[i].equals("-") ? "-" : args[i].substring(1))) {
+		    String ln;
+		    while ((ln = br.readLine()) != null) {
+			if (!(ln = ln.trim()).isEmpty())
+			    to.accept(ln);
+		    }
+		} catch (IOException e) {
+		    System.out.print("Error reading file list " + args[i]);
+		    e.printStackTrace();
+		}
+	    } else {
+		to.accept(args[i]);
+	    }
+	}
+    }
+
+    static void sf1(String file, int fl) {
+	long st = System.nanoTime();
+	try {
+	    System.out.println("ATTEMPT => " + file);
+	    Resource r = new Resource(file, file, fl == 1 ? "nres//" : "dout//", fl == 1 ? false : true);
+	    if (fl == 1) {
+		r.encodeall();
+	    } else {
+		r.decodeall();
+	    }
+	} catch (Exception e) {
+	    System.out.print("Error loading file " + file);
+	    e.printStackTrace();
+	}
+	if (Resource.stats != null) Resource.stats.file(file, System.nanoTime() - st);
+    }
+
+    /* Reads a list file, or stdin for `-' */
+    static BufferedReader lines(String name) throws IOException {
+	return new BufferedReader(new InputStreamReader(name.equals("-") ? System.in : new FileInputStream(name), StandardCharsets.UTF_8));
+    }
+
+    /* Runs one -d, -e, -rd or -re job per line of a spec file */
+    static void jobs(int st, String[] args) throws Exception {
+	if (args.length < st + 2) {
+	    System.out.print(JF);
+	    System.exit(0);
+	}
+	try (BufferedReader br = lines(args[st + 1])) {
+	    String ln;
+	    while ((ln = br.readLine()) != null) {
+		ln = ln.trim();
+		if (ln.isEmpty() || ln.charAt(0) == '#')
+		    continue;
+		String[] job = ln.split("\\s+");
+		if (job[0].equals("-d") && job.length > 1) {
+		    sf(0, job, 0);
+		} else if (job[0].equals("-e") && job.length > 1) {
+		    sf(0, job, 1);
+		} else if (job[0].equals("-rd") && job.length == 3) {
+		    rf(0, job, 0);
+		} else if (job[0].equals("-re") && job.length == 3) {
+		    rf(0, job, 1);
 		} else {
-		    r.decodeall();
+		    System.out.println("Invalid job: " + ln);
 		}
-	    } catch (Exception e) {
-		System.out.print("Error loading file " + args[i]);
-		e.printStackTrace();
 	    }
 	}
     }
@@ -156,88 +363,31 @@ public class LayerUtil {
 	    System.out.print(RF[fl]);
 	    System.exit(0);
 	}
-	ArrayList<String> files = new ArrayList<String>();
 	String in = args[st + 1];
-	int in_len = in.length();
 	String out = args[st + 2].replace("\\", "/") + "/";
 	if (print) System.out.println("Processing resources in "+in);
-	if (fl == 1) {
-	    rcdget(new File(in), files);
-	} else {
-	    rcget(new File(in), files);
-	}
-	String name;
-	Resource r;
-	for (String s : files) {
-	    try {
-		name = s.substring(in_len);
-		
-		if(skip){
-		    long in_date = getDate(in+name);
-		    long out_date = getDate(out+name);
-		    if(out_date > in_date){
-			if (print_skips) System.out.println("SKIPPED => " + name);
-			continue;
-		    }
-		}
-		if (print) System.out.println("ATTEMPT => " + name);
-		r = new Resource(s, "/" + name, out, fl == 1 ? false : true);
-		if (fl == 1) {
-		    r.encodeall();
-		} else {
-		    r.decodeall();
-		}
-	    } catch (Exception e) {
-		System.out.print("Error loading file " + s);
-		e.printStackTrace();
-	    }
-	}
+	new Batch(in, out, fl).run();
     }
 
-    private static long getDate(String name) {
-	return getDate(new File(name));
-    }
-    
-    private static long getDate(File file) {
-	if(file.exists()){
-	    if(file.isFile()){
-		return file.lastModified();
-	    } else {
-		long date = 0;
-		for (File s : file.listFiles())
-		    date = Math.max(date, getDate(s));
-		return date;
-	    }
+    static void transform(int st, String[] args) throws Exception {
+	if (args.length < st + 4) {
+	    System.out.print(TF);
+	    System.exit(0);
 	}
-	return 0;
-    }
-    
-    
-    
-    static void rcdget1(File f, ArrayList<String> fls) {
-	if (f.isDirectory()) if (f.getName().endsWith(".res") || f.getName().endsWith(".cache")) {
-	    fls.add(f.getPath());
-	    return;
-	} else {
-	    for (File s : f.listFiles())
-		rcdget1(s, fls);
+	Transform t;
+	try (BufferedReader br = lines(args[st + 1])) {
+	    t = new Transform(br);
 	}
+	t.run(Paths.get(args[st + 2]), Paths.get(args[st + 3]));
     }
 
-    static void rcdget(File f, ArrayList<String> fls) {
-	rcdget1(f, fls);
-    }
-
-    static void rcget1(File f, ArrayList<String> fls) {
-	if (f.isFile() && (f.getName().endsWith(".res") || f.getName().endsWith(".cache"))) {
-	    fls.add(f.getPath());
-	    return;
+    static void watch(int st, String[] args) throws Exception {
+	if (args.length < st + 3) {
+	    System.out.print(RF[2]);
+	    System.exit(0);
 	}
-	if (f.isDirectory()) for (File s : f.listFiles())
-	    rcget1(s, fls);
-    }
-
-    static void rcget(File f, ArrayList<String> fls) {
-	rcget1(f, fls);
+	String in = args[st + 1];
+	String out = args[st + 2].replace("\\", "/") + "/";
+	new Watch(in, out).run();
     }
 }
@@ -0,0 +1,206 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+import haven.Header;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* -transform: rewrites .res files straight into .res files, layer by
+ * layer. Layers no rule touches are copied as they are with
+ * FileChannel.transferTo, so nothing is decoded.
+ *
+ * Rules, one per line, `#' starts a comment:
+ *   drop TYPE              leave out every TYPE layer
+ *   replace TYPE N FILE    use the bytes of FILE as the payload of the
+ *                          N:th TYPE layer (numbered as in -ls)
+ *   text TYPE FROM TO      replace FROM with TO in the text of every
+ *                          tooltip or pagina layer of TYPE
+ * Arguments with spaces can be given in double quotes. */
+class Transform {
+    static final Set<String> TEXT = new HashSet<String>(Arrays.asList("tooltip", "pagina"));
+
+    final Set<String> drop = new HashSet<String>();
+    final Map<String, Path> replace = new HashMap<String, Path>();
+    final Map<String, List<String[]>> text = new HashMap<String, List<String[]>>();
+
+    Transform(BufferedReader rules) throws IOException {
+	String ln;
+	for (int no = 1; (ln = rules.readLine()) != null; no++) {
+	    List<String> a = split(ln);
+	    if (a.isEmpty())
+		continue;
+	    switch (a.get(0)) {
+		case "drop":
+		    if (a.size() != 2) throw (new IOException("Line " + no + ": drop TYPE"));
+		    drop.add(a.get(1));
+		    break;
+		case "replace":
+		    if (a.size() != 4 || !a.get(2).matches("\\d+"))
+			throw (new IOException("Line " + no + ": replace TYPE N FILE"));
+		    replace.put(a.get(1) + "_" + a.get(2), Paths.get(a.get(3)));
+		    break;
+		case "text":
+		    if (a.size() != 4) throw (new IOException("Line " + no + ": text TYPE FROM TO"));
+		    if (!TEXT.contains(a.get(1))) throw (new IOException("Line " + no + ": text rules only apply to " + TEXT));
+		    text.computeIfAbsent(a.get(1), k -> new ArrayList<String[]>()).add(new String[] {a.get(2), a.get(3)});
+		    break;
+		default:
+		    throw (new IOException("Line " + no + ": unknown rule " + a.get(0)));
+	    }
+	}
+    }
+
+    /* Splits a rule line on whitespace, keeping "quoted \"strings\"" whole */
+    static List<String> split(String ln) {
+	List<String> ret = new ArrayList<String>();
+	StringBuilder buf = null;
+	boolean q = false;
+	for (int i = 0; i < ln.length(); i++) {
+	    char c = ln.charAt(i);
+	    if (q) {
+		if (c == '\\' && i + 1 < ln.length()) {
+		    buf.append(ln.charAt(++i));
+		} else if (c == '"') {
+		    q = false;
+		} else {
+		    buf.append(c);
+		}
+	    } else if (c == '#' && buf == null) {
+		break;
+	    } else if (Character.isWhitespace(c)) {
+		if (buf != null) ret.add(buf.toString());
+		buf = null;
+	    } else {
+		if (buf == null) buf = new StringBuilder();
+		if (c == '"')
+		    q = true;
+		else
+		    buf.append(c);
+	    }
+	}
+	if (buf != null) ret.add(buf.toString());
+	return (ret);
+    }
+
+    /* Transforms IN into OUT; a directory IN gives every *.res file
+     * below it the same relative path under OUT, and a single file
+     * goes into OUT under its own name if OUT is a directory */
+    void run(Path in, Path out) throws Exception {
+	if (!Files.isDirectory(in)) {
+	    file(in, Files.isDirectory(out) ? out.resolve(in.getFileName()) : out);
+	    return;
+	}
+	List<Path> files;
+	try (Stream<Path> s = Files.walk(in, FileVisitOption.FOLLOW_LINKS)) {
+	    files = s.filter(p -> p.toString().endsWith(".res") && Files.isRegularFile(p)).sorted().collect(Collectors.toList());
+	}
+	Runnable all = () -> files.parallelStream().forEach(f -> file(f, out.resolve(in.relativize(f).toString())));
+	ForkJoinPool pool = new ForkJoinPool(LayerUtil.jobs);
+	try {
+	    pool.submit(all).get();
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    void file(Path in, Path out) {
+	Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+	try {
+	    if (LayerUtil.print) System.out.println("ATTEMPT => " + in);
+	    if (out.getParent() != null) Files.createDirectories(out.getParent());
+	    try (FileChannel ic = FileChannel.open(in, StandardOpenOption.READ);
+		 FileChannel oc = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+		transform(ic, oc);
+	    }
+	    Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+	} catch (IOException e) {
+	    System.out.print("Error transforming file " + in);
+	    e.printStackTrace();
+	    try {
+		Files.deleteIfExists(tmp);
+	    } catch (IOException e2) {
+	    }
+	}
+    }
+
+    void transform(FileChannel ic, FileChannel oc) throws IOException {
+	Header h = Header.read(ic);
+	/* Signature and version */
+	long pos = h.layers.isEmpty() ? h.size : h.layers.get(0).off - hlen(h.layers.get(0));
+	copy(ic, 0, pos, oc);
+	Map<String, Integer> n = new HashMap<String, Integer>();
+	for (Header.Layer l : h.layers) {
+	    int i = n.merge(l.type, 1, Integer::sum) - 1;
+	    long st = l.off - hlen(l);
+	    if (drop.contains(l.type))
+		continue;
+	    Path rep = replace.get(l.type + "_" + i);
+	    List<String[]> tr = text.get(l.type);
+	    if (rep != null) {
+		write(oc, l.type, Files.readAllBytes(rep));
+	    } else if (tr != null) {
+		ByteBuffer buf = ByteBuffer.allocate(l.len);
+		while (buf.hasRemaining()) {
+		    if (ic.read(buf, l.off + buf.position()) < 0) throw (new IOException("Unexpected end of file"));
+		}
+		String t = new String(buf.array(), StandardCharsets.UTF_8);
+		for (String[] r : tr)
+		    t = t.replace(r[0], r[1]);
+		write(oc, l.type, t.getBytes(StandardCharsets.UTF_8));
+	    } else {
+		copy(ic, st, l.off + l.len - st, oc);
+	    }
+	}
+    }
+
+    /* Length of the type name, NUL and length field before a payload */
+    static int hlen(Header.Layer l) {
+	return (l.type.length() + 5);
+    }
+
+    static void write(FileChannel oc, String type, byte[] data) throws IOException {
+	byte[] t = type.getBytes(StandardCharsets.ISO_8859_1);
+	ByteBuffer hdr = ByteBuffer.allocate(t.length + 5).order(ByteOrder.LITTLE_ENDIAN);
+	hdr.put(t).put((byte) 0).putInt(data.length).flip();
+	ByteBuffer[] bufs = {hdr, ByteBuffer.wrap(data)};
+	while (hdr.hasRemaining() || bufs[1].hasRemaining())
+	    oc.write(bufs);
+    }
+
+    static void copy(FileChannel ic, long pos, long len, FileChannel oc) throws IOException {
+	while (len > 0) {
+	    long n = ic.transferTo(pos, len, oc);
+	    if (n <= 0) throw (new IOException("Unexpected end of file"));
+	    pos += n;
+	    len -= n;
+	}
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/* Keeps an encoded tree in sync with a decoded one: every change below
+ * IN re-encodes just the *.res directory it happened in. */
+class Watch {
+    /* How long a resource must be left alone before it is re-encoded,
+     * so that a save touching several files is handled once */
+    static final long QUIET = 30;
+
+    final Batch b;
+    final Path root;
+    final WatchService ws;
+    final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    final Map<Path, Long> pending = new LinkedHashMap<Path, Long>();
+
+    Watch(String in, String out) throws IOException {
+	this.b = new Batch(in, out, 1);
+	this.root = Paths.get(in);
+	this.ws = root.getFileSystem().newWatchService();
+    }
+
+    void run() throws Exception {
+	register(root);
+	b.run();
+	if (LayerUtil.print) System.out.println("Watching " + root + " for changes");
+	while (true) {
+	    WatchKey key;
+	    if (pending.isEmpty()) {
+		key = ws.take();
+	    } else {
+		long wait = pending.values().iterator().next() - System.currentTimeMillis();
+		key = (wait > 0) ? ws.poll(wait, TimeUnit.MILLISECONDS) : ws.poll();
+	    }
+	    if (key != null) {
+		events(key);
+		continue;
+	    }
+	    flush();
+	}
+    }
+
+    void register(Path dir) throws IOException {
+	Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+		public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+		    keys.put(d.register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), d);
+		    return (FileVisitResult.CONTINUE);
+		}
+	    });
+    }
+
+    void events(WatchKey key) throws Exception {
+	Path dir = keys.get(key);
+	for (WatchEvent<?> ev : key.pollEvents()) {
+	    if (ev.kind() == OVERFLOW) {
+		/* Lost track of what changed, so check everything */
+		pending.clear();
+		b.run();
+		continue;
+	    }
+	    if (dir == null)
+		continue;
+	    Path p = dir.resolve((Path) ev.context());
+	    if (ev.kind() == ENTRY_CREATE && Files.isDirectory(p))
+		register(p);
+	    Path res = resdir(p);
+	    if (res != null) {
+		/* Re-insert so that pending stays ordered by deadline */
+		pending.remove(res);
+		pending.put(res, System.currentTimeMillis() + QUIET);
+	    }
+	}
+	if (!key.reset())
+	    keys.remove(key);
+    }
+
+    /* The decoded *.res directory containing p, if any */
+    Path resdir(Path p) {
+	for (; p != null && p.startsWith(root); p = p.getParent()) {
+	    if (b.match(p, true))
+		return (p);
+	}
+	return (null);
+    }
+
+    void flush() throws IOException {
+	long now = System.currentTimeMillis();
+	for (Iterator<Map.Entry<Path, Long>> i = pending.entrySet().iterator(); i.hasNext();) {
+	    Map.Entry<Path, Long> e = i.next();
+	    if (e.getValue() > now)
+		break;
+	    i.remove();
+	    if (Files.isDirectory(e.getKey()))
+		b.process(e.getKey().toString(), System.out, System.err);
+	}
+	b.manifest.save();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/* The signature, version and layer headers of a .res file, read with
+ * positioned reads that skip over every payload */
+public class Header {
+    public static class Layer {
+	public final String type;
+	/* Payload position in the file */
+	public final long off;
+	public final int len;
+
+	Layer(String type, long off, int len) {
+	    this.type = type;
+	    this.off = off;
+	    this.len = len;
+	}
+    }
+
+    public final int ver;
+    public final long size;
+    public final List<Layer> layers;
+
+    private Header(int ver, long size, List<Layer> layers) {
+	this.ver = ver;
+	this.size = size;
+	this.layers = layers;
+    }
+
+    public static Header read(File f) throws IOException {
+	try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+	    return (read(fc));
+	}
+    }
+
+    public static Header read(FileChannel fc) throws IOException {
+	long size = fc.size();
+	return (read(new Source() {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+
+		public long size() {
+		    return (size);
+		}
+
+		public ByteBuffer window(long pos, int len) throws IOException {
+		    if (buf.capacity() < len)
+			buf = ByteBuffer.allocate(len);
+		    buf.clear().limit(len);
+		    while (buf.hasRemaining()) {
+			if (fc.read(buf, pos + buf.position()) < 0)
+			    break;
+		    }
+		    buf.flip();
+		    return (buf);
+		}
+	    }));
+    }
+
+    /* The headers of a .res already in memory, from its position to its
+     * limit. Offsets are relative to the position. */
+    public static Header read(ByteBuffer in) throws IOException {
+	int base = in.position();
+	long size = in.remaining();
+	return (read(new Source() {
+		public long size() {
+		    return (size);
+		}
+
+		public ByteBuffer window(long pos, int len) {
+		    ByteBuffer b = in.duplicate();
+		    b.limit(base + (int) Math.min(size, pos + len));
+		    b.position(base + (int) pos);
+		    return (b.slice());
+		}
+	    }));
+    }
+
+    /* Where headers are read from. window() gives the len bytes at pos
+     * at the start of a buffer, or fewer only where the file ends. */
+    private interface Source {
+	long size();
+
+	ByteBuffer window(long pos, int len) throws IOException;
+    }
+
+    private static Header read(Source src) throws IOException {
+	long size = src.size();
+	int sl = Resource.BSIG.length;
+	ByteBuffer buf = src.window(0, sl + 2).order(ByteOrder.LITTLE_ENDIAN);
+	if (buf.remaining() < sl + 2)
+	    throw (new IOException("Invalid res signature"));
+	for (int i = 0; i < sl; i++) {
+	    if (buf.get(i) != Resource.BSIG[i])
+		throw (new IOException("Invalid res signature"));
+	}
+	int ver = buf.getShort(sl) & 0xffff;
+	List<Layer> layers = new ArrayList<Layer>();
+	long pos = sl + 2;
+	int want = 64;
+	while (pos < size) {
+	    /* Type name, NUL, then a 4 byte length. A window too short to
+	     * hold all of them is read again twice as long, so only a file
+	     * that really ends early is incomplete. */
+	    int n, e;
+	    while (true) {
+		buf = src.window(pos, want).order(ByteOrder.LITTLE_ENDIAN);
+		n = buf.remaining();
+		for (e = 0; e < n && buf.get(e) != 0; e++);
+		if (e + 5 <= n || n < want)
+		    break;
+		want *= 2;
+	    }
+	    if (e + 5 > n)
+		throw (new IOException("Incomplete resource at " + pos));
+	    byte[] tbuf = new byte[e];
+	    buf.get(tbuf);
+	    String type = new String(tbuf, StandardCharsets.ISO_8859_1);
+	    int len = buf.getInt(e + 1);
+	    pos += e + 5;
+	    if (len < 0 || pos + len > size)
+		throw (new IOException("Incomplete resource at " + pos));
+	    layers.add(new Layer(type, pos, len));
+	    pos += len;
+	}
+	return (new Header(ver, size, layers));
+    }
+}
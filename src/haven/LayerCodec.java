@@ -0,0 +1,105 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.io.File;
+import java.util.*;
+
+/* How to build one layer type from its .res payload and from its
+ * decoded files. Resource registers the built in types itself; more
+ * can be added from other jars by listing a Provider in
+ * META-INF/services/haven.LayerCodec$Provider. */
+public class LayerCodec {
+    /* data reads the payload, possibly straight from a mapped file;
+     * data.bytes() gets all of it as an array */
+    public interface Binary {
+	Resource.Layer make(Resource res, Message data);
+    }
+
+    public interface Decoded {
+	Resource.Layer make(Resource res, File[] src) throws Exception;
+    }
+
+    /* Splits the files of a decoded layer directory, sorted in layer
+     * order, into the source files of each layer */
+    public interface Sources {
+	List<File[]> group(File[] files) throws Exception;
+    }
+
+    public interface Provider {
+	Collection<LayerCodec> codecs();
+    }
+
+    public final String type;
+    public final Binary bin;
+    /* Both null for types that can't be encoded from decoded files */
+    public final Decoded dec;
+    public final Sources src;
+
+    public LayerCodec(String type, Binary bin, Decoded dec, Sources src) {
+	this.type = type;
+	this.bin = bin;
+	this.dec = dec;
+	this.src = src;
+    }
+
+    public LayerCodec(String type, Binary bin) {
+	this(type, bin, null, null);
+    }
+
+    /* One file per layer */
+    public static Sources ext(String ext) {
+	return (files -> {
+		List<File[]> ret = new ArrayList<File[]>();
+		for (File f : files) {
+		    if (f.getName().endsWith(ext))
+			ret.add(new File[] {f});
+		}
+		return (ret);
+	    });
+    }
+
+    /* Several files per layer sharing a base name, such as image_0.data
+     * and image_0.png, given in the order the constructor takes them */
+    public static Sources set(String... exts) {
+	return (files -> {
+		Map<String, File[]> sets = new LinkedHashMap<String, File[]>();
+		for (File f : files) {
+		    String n = f.getName();
+		    int d = n.indexOf('.');
+		    if (d < 0)
+			continue;
+		    int i = Arrays.asList(exts).indexOf(n.substring(d));
+		    if (i < 0)
+			continue;
+		    sets.computeIfAbsent(n.substring(0, d), k -> new File[exts.length])[i] = f;
+		}
+		for (Map.Entry<String, File[]> e : sets.entrySet()) {
+		    for (File f : e.getValue()) {
+			if (f == null)
+			    throw (new Exception("Invalid number of decoded files for " + e.getKey()));
+		    }
+		}
+		return (new ArrayList<File[]>(sets.values()));
+	    });
+    }
+}
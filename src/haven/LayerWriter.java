@@ -0,0 +1,70 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/* Encoder output for a whole .res file. begin() writes a layer's type
+ * name and leaves room for its length, the layer then writes its
+ * payload with the Message add* methods, and end() fills the length
+ * in, so no layer has to know its size up front. One writer is kept
+ * per thread and reset() between resources. */
+public class LayerWriter extends MessageBuf {
+    /* Most buffer a writer keeps between resources. One big resource
+     * would otherwise pin its size on every thread for good. */
+    public static int KEEP = 4 << 20;
+    private int lenoff = -1;
+
+    public LayerWriter reset() {
+	wh = 0;
+	lenoff = -1;
+	if (wt > KEEP) {
+	    wbuf = new byte[KEEP];
+	    wt = KEEP;
+	}
+	return (this);
+    }
+
+    /* Starts a layer from its NUL terminated type name */
+    public void begin(byte[] tbuf) {
+	if(lenoff >= 0)
+	    throw (new IllegalStateException("Layer not ended"));
+	addbytes(tbuf);
+	lenoff = wh;
+	addint32(0);
+    }
+
+    /* Ends the current layer and returns its payload length */
+    public int end() {
+	if(lenoff < 0)
+	    throw (new IllegalStateException("No layer begun"));
+	int len = wh - lenoff - 4;
+	Utils.int32e(len, wbuf, lenoff);
+	lenoff = -1;
+	return (len);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+	out.write(wbuf, 0, wh);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Records what each resource in an output root was built from, so that
+ * an unchanged input can be skipped with a single stat. */
+public class Manifest {
+    public static final String FILE = "layerutil.manifest";
+    private static final int SAVE_EVERY = 500;
+
+    public static class Entry {
+	/* Input: size and mtime of the .res file, or the total size and
+	 * newest mtime of the files in a decoded directory */
+	public long size, mtime;
+	public String hash;
+	/* Output: size and mtime of the written .res or decoded meta file */
+	public long osize, omtime;
+	/* Layers of an encoded .res, in file order */
+	public List<LayerRec> layers;
+	/* Resource.filter() of the run that decoded it */
+	public String filter;
+	/* Resource.encoding() of the run that encoded it */
+	public String enc;
+
+	public boolean same(Entry o) {
+	    return (size == o.size && mtime == o.mtime);
+	}
+    }
+
+    public static class LayerRec {
+	public String type;
+	/* Fingerprint of the decoded files the layer was built from */
+	public String src;
+	/* Payload position in the .res */
+	public long off;
+	public int len;
+
+	public LayerRec(String type, String src, long off, int len) {
+	    this.type = type;
+	    this.src = src;
+	    this.off = off;
+	    this.len = len;
+	}
+    }
+
+    private ConcurrentHashMap<String, Entry> res = new ConcurrentHashMap<String, Entry>();
+    private transient File file;
+    private transient int changed = 0;
+
+    public static Manifest load(String root) {
+	File f = new File(root, FILE);
+	Manifest m = null;
+	if(f.isFile()) {
+	    try (Reader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+		m = new Gson().fromJson(r, Manifest.class);
+	    } catch (Exception e) {
+		System.out.println("Ignoring unreadable manifest " + f + ": " + e);
+	    }
+	}
+	if(m == null || m.res == null)
+	    m = new Manifest();
+	m.file = f;
+	return (m);
+    }
+
+    public Entry get(String name) {
+	return (res.get(name));
+    }
+
+    public void put(String name, Entry e) throws IOException {
+	res.put(name, e);
+	boolean save;
+	synchronized (this) {
+	    save = (++changed % SAVE_EVERY) == 0;
+	}
+	if(save)
+	    save();
+    }
+
+    public synchronized void save() throws IOException {
+	if(changed == 0)
+	    return;
+	file.getAbsoluteFile().getParentFile().mkdirs();
+	File tmp = new File(file.getPath() + ".tmp");
+	try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+	    new GsonBuilder().create().toJson(this, w);
+	}
+	Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	changed = 0;
+    }
+
+    /* Size and mtime of a file, or summed/newest over a directory tree */
+    public static Entry stat(File f) {
+	Entry e = new Entry();
+	stat(f, e);
+	return (e);
+    }
+
+    private static void stat(File f, Entry e) {
+	if(f.isDirectory()) {
+	    File[] l = f.listFiles();
+	    if(l != null) for (File s : l)
+		stat(s, e);
+	} else if(f.exists()) {
+	    e.size += f.length();
+	    e.mtime = Math.max(e.mtime, f.lastModified());
+	}
+    }
+
+    public static String hash(byte[] data) {
+	MessageDigest md = digest();
+	md.update(data);
+	return (Utils.byte2hex(md.digest()));
+    }
+
+    /* Hashes a file, or the relative names and contents of every file
+     * in a directory tree */
+    public static String hash(File f) throws IOException {
+	MessageDigest md = digest();
+	if(f.isDirectory()) {
+	    List<String> names = new ArrayList<String>();
+	    list(f, "", names);
+	    Collections.sort(names);
+	    for (String n : names) {
+		md.update(n.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		md.update(Files.readAllBytes(new File(f, n).toPath()));
+	    }
+	} else {
+	    md.update(Files.readAllBytes(f.toPath()));
+	}
+	return (Utils.byte2hex(md.digest()));
+    }
+
+    /* Cheap fingerprint of a layer's source files: names, sizes and mtimes */
+    public static String srcfp(File[] src) {
+	StringBuilder buf = new StringBuilder();
+	for (File f : src)
+	    buf.append(f.getName()).append(':').append(f.length()).append(':').append(f.lastModified()).append(';');
+	return (hash(buf.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void list(File dir, String pfx, List<String> names) {
+	File[] l = dir.listFiles();
+	if(l == null)
+	    return;
+	for (File s : l) {
+	    if(s.isDirectory())
+		list(s, pfx + s.getName() + "/", names);
+	    else
+		names.add(pfx + s.getName());
+	}
+    }
+
+    private static MessageDigest digest() {
+	try {
+	    return (MessageDigest.getInstance("SHA-1"));
+	} catch (NoSuchAlgorithmException e) {
+	    throw (new AssertionError(e));
+	}
+    }
+}
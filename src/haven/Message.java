@@ -229,6 +229,53 @@ public abstract class Message {
 	return(uint32() / 0xffffffffp0);
     }
 
+    /* Bulk reads of n values into dst, decoded straight out of the
+     * read window a window-full at a time */
+    private int rbulk(int sz, int n) {
+	rensure(sz);
+	return(Math.min(n, (rt - rh) / sz));
+    }
+    public void int16s(int[] dst, int off, int n) {
+	for(int c; n > 0; off += c, n -= c) {
+	    c = rbulk(2, n);
+	    Utils.int16s(rbuf, rh, dst, off, c);
+	    rh += c * 2;
+	}
+    }
+    public void int16s(int[] dst, int n) {int16s(dst, 0, n);}
+    public void uint16s(int[] dst, int off, int n) {
+	for(int c; n > 0; off += c, n -= c) {
+	    c = rbulk(2, n);
+	    Utils.uint16s(rbuf, rh, dst, off, c);
+	    rh += c * 2;
+	}
+    }
+    public void uint16s(int[] dst, int n) {uint16s(dst, 0, n);}
+    public void int32s(int[] dst, int off, int n) {
+	for(int c; n > 0; off += c, n -= c) {
+	    c = rbulk(4, n);
+	    Utils.int32s(rbuf, rh, dst, off, c);
+	    rh += c * 4;
+	}
+    }
+    public void int32s(int[] dst, int n) {int32s(dst, 0, n);}
+    public void float16s(float[] dst, int off, int n) {
+	for(int c; n > 0; off += c, n -= c) {
+	    c = rbulk(2, n);
+	    Utils.float16s(rbuf, rh, dst, off, c);
+	    rh += c * 2;
+	}
+    }
+    public void float16s(float[] dst, int n) {float16s(dst, 0, n);}
+    public void float32s(float[] dst, int off, int n) {
+	for(int c; n > 0; off += c, n -= c) {
+	    c = rbulk(4, n);
+	    Utils.float32s(rbuf, rh, dst, off, c);
+	    rh += c * 4;
+	}
+    }
+    public void float32s(float[] dst, int n) {float32s(dst, 0, n);}
+
     public Object[] list() {
 	ArrayList<Object> ret = new ArrayList<Object>();
 	list: while(true) {
@@ -296,6 +343,75 @@ public abstract class Message {
 	return(ret.toArray());
     }
 
+    /* Reads a TTO list as list() does, handing each value to v as it
+     * comes instead of collecting them */
+    public void list(TtoVisitor v) {
+	while(true) {
+	    if(eom())
+		break;
+	    int t = uint8();
+	    switch(t) {
+	    case T_END:
+		return;
+	    case T_INT:
+		v.onInt(int32());
+		break;
+	    case T_STR:
+		v.onString(string());
+		break;
+	    case T_COORD:
+		v.onCoord(int32(), int32());
+		break;
+	    case T_UINT8:
+		v.onUint8(uint8());
+		break;
+	    case T_UINT16:
+		v.onUint16(uint16());
+		break;
+	    case T_INT8:
+		v.onInt8(int8());
+		break;
+	    case T_INT16:
+		v.onInt16(int16());
+		break;
+	    case T_COLOR:
+		v.onColor(uint8(), uint8(), uint8(), uint8());
+		break;
+	    case T_TTOL:
+		v.beginList();
+		list(v);
+		v.endList();
+		break;
+	    case T_NIL:
+		v.onNil();
+		break;
+	    case T_UID:
+		v.onUid(int64());
+		break;
+	    case T_BYTES:
+		int len = uint8();
+		if((len & 128) != 0)
+		    len = int32();
+		v.onBytes(bytes(len));
+		break;
+	    case T_FLOAT32:
+		v.onFloat32(float32());
+		break;
+	    case T_FLOAT64:
+		v.onFloat64(float64());
+		break;
+	    case T_FCOORD32:
+		v.onFCoord32(float32(), float32());
+		break;
+	    case T_FCOORD64:
+		v.onFCoord64(float64(), float64());
+		break;
+	    default:
+		throw(new FormatError("Encountered unknown type " + t + " in TTO list."));
+	    }
+	}
+    }
+
     public abstract void overflow(int min);
 
     private void wensure(int len) {
@@ -0,0 +1,108 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.nio.ByteBuffer;
+
+/* A read-only Message over the remaining bytes of a ByteBuffer. Heap
+ * buffers are read in place. Direct and mapped buffers are read
+ * through a small window that underflow() refills, while bulk byte
+ * reads go straight from the buffer into the caller's array, so a
+ * payload is never copied to the heap as a whole first. */
+public class MessageByteBuffer extends Message {
+    private static final int WINDOW = 4096;
+    private final ByteBuffer src;
+
+    public MessageByteBuffer(ByteBuffer buf) {
+	if(buf.hasArray()) {
+	    this.src = null;
+	    this.rbuf = buf.array();
+	    this.rh = buf.arrayOffset() + buf.position();
+	    this.rt = this.rh + buf.remaining();
+	} else {
+	    this.src = buf.slice();
+	}
+    }
+
+    public boolean underflow(int hint) {
+	if((src == null) || !src.hasRemaining())
+	    return(false);
+	int left = rt - rh;
+	int want = Math.max(left + hint, WINDOW);
+	if(rbuf.length < want) {
+	    byte[] n = new byte[want];
+	    System.arraycopy(rbuf, rh, n, 0, left);
+	    rbuf = n;
+	} else {
+	    System.arraycopy(rbuf, rh, rbuf, 0, left);
+	}
+	int r = Math.min(rbuf.length - left, src.remaining());
+	src.get(rbuf, left, r);
+	rh = 0;
+	rt = left + r;
+	return(true);
+    }
+
+    public void overflow(int min) {
+	throw(new RuntimeException("MessageByteBuffer is not writable"));
+    }
+
+    /* Bytes left to read */
+    public int rem() {
+	return(rt - rh + ((src == null) ? 0 : src.remaining()));
+    }
+
+    public void bytes(byte[] b, int off, int len) {
+	if(len > rem())
+	    throw(new EOF("Required " + len + " bytes, got only " + rem()));
+	int r = Math.min(len, rt - rh);
+	System.arraycopy(rbuf, rh, b, off, r);
+	rh += r;
+	if(len > r)
+	    src.get(b, off + r, len - r);
+    }
+
+    public byte[] bytes(int n) {
+	byte[] ret = new byte[n];
+	bytes(ret, 0, n);
+	return(ret);
+    }
+
+    public byte[] bytes() {
+	return(bytes(rem()));
+    }
+
+    public void skip(int n) {
+	if(n > rem())
+	    throw(new EOF("Out of bytes to skip"));
+	int r = Math.min(n, rt - rh);
+	rh += r;
+	if(n > r)
+	    src.position(src.position() + n - r);
+    }
+
+    public void skip() {
+	rh = rt;
+	if(src != null)
+	    src.position(src.limit());
+    }
+}
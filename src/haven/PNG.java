@@ -0,0 +1,325 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/* 8 bit gray, RGB or RGBA PNG encoder used in place of ImageIO's
+ * writer. Large images are filtered and deflated in parallel, in row
+ * chunks that each become their own IDAT chunk; every chunk is
+ * primed with the last 32k of the one before it, so splitting costs
+ * next to nothing in size. Images in any other layout, such as 16
+ * bit, palette or gray with alpha, still go to ImageIO's writer so
+ * that they keep it; each thread reuses one writer for those. */
+public class PNG {
+    public enum Filter {
+	NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+    }
+
+    /* Deflate level, 0-9 or Deflater.DEFAULT_COMPRESSION */
+    public static int level = Deflater.DEFAULT_COMPRESSION;
+    public static Filter filter = Filter.ADAPTIVE;
+    /* Images are split into chunks of about this many filtered bytes */
+    public static int chunk = 1 << 18;
+    private static final int WINDOW = 32768;
+
+    /* ImageIO's PNG writer for this thread, looked up on first use */
+    private static final ThreadLocal<ImageWriter> writers = ThreadLocal.withInitial(() -> {
+	    Iterator<ImageWriter> i = ImageIO.getImageWritersByFormatName("png");
+	    return (i.hasNext() ? i.next() : null);
+	});
+
+    public static void write(BufferedImage img, File f) throws IOException {
+	Files.write(f.toPath(), encode(img));
+    }
+
+    public static byte[] encode(BufferedImage img) throws IOException {
+	if (!direct(img))
+	    return (imageio(img));
+	int w = img.getWidth(), h = img.getHeight();
+	int ctype, bpp;
+	if (img.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+	    ctype = 0;
+	    bpp = 1;
+	} else if (img.getColorModel().hasAlpha() && !opaque(img)) {
+	    ctype = 6;
+	    bpp = 4;
+	} else {
+	    ctype = 2;
+	    bpp = 3;
+	}
+	int stride = w * bpp;
+	int rpc = Math.max(1, chunk / (stride + 1));
+	int n = Math.max(1, (h + rpc - 1) / rpc);
+	byte[] f = new byte[h * (stride + 1)];
+	IntStream cs = IntStream.range(0, n);
+	if (n > 1)
+	    cs = cs.parallel();
+	cs.forEach(c -> filter(img, bpp, f, c * rpc, Math.min(h, (c + 1) * rpc)));
+
+	IntStream ds = IntStream.range(0, n);
+	if (n > 1)
+	    ds = ds.parallel();
+	List<byte[]> idat = ds.mapToObj(c -> {
+		int off = c * rpc * (stride + 1);
+		return (deflate(f, off, Math.min(f.length, off + rpc * (stride + 1)) - off, c == n - 1));
+	    }).collect(Collectors.toList());
+
+	ByteArrayOutputStream out = new ByteArrayOutputStream(f.length / 2 + 64);
+	out.write(Resource.PNGSIG);
+	byte[] ihdr = new byte[13];
+	be32(ihdr, 0, w);
+	be32(ihdr, 4, h);
+	ihdr[8] = 8;
+	ihdr[9] = (byte) ctype;
+	chunk(out, "IHDR", ihdr, 0, ihdr.length);
+	/* The zlib stream header goes before the first chunk and the
+	 * checksum after the last */
+	Adler32 ck = new Adler32();
+	ck.update(f, 0, f.length);
+	int lv = (level < 0) ? 2 : (level < 2) ? 0 : (level < 6) ? 1 : (level == 6) ? 2 : 3;
+	int hdr = 0x7800 | (lv << 6);
+	hdr += 31 - (hdr % 31);
+	for (int c = 0; c < n; c++) {
+	    byte[] d = idat.get(c);
+	    int pre = (c == 0) ? 2 : 0, post = (c == n - 1) ? 4 : 0;
+	    byte[] buf = new byte[pre + d.length + post];
+	    if (pre > 0) {
+		buf[0] = (byte) (hdr >> 8);
+		buf[1] = (byte) hdr;
+	    }
+	    System.arraycopy(d, 0, buf, pre, d.length);
+	    if (post > 0)
+		be32(buf, buf.length - 4, (int) ck.getValue());
+	    chunk(out, "IDAT", buf, 0, buf.length);
+	}
+	chunk(out, "IEND", new byte[0], 0, 0);
+	return (out.toByteArray());
+    }
+
+    private static byte[] imageio(BufferedImage img) throws IOException {
+	ImageWriter w = writers.get();
+	if ((w == null) || !w.getOriginatingProvider().canEncodeImage(img))
+	    throw (new IOException("No PNG writer for image type " + img.getType()));
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	try (ImageOutputStream out = new MemoryCacheImageOutputStream(buf)) {
+	    w.setOutput(out);
+	    try {
+		w.write(img);
+	    } finally {
+		w.setOutput(null);
+	    }
+	}
+	return (buf.toByteArray());
+    }
+
+    /* Whether encode() writes img itself: 8 bit gray or 8 bit RGB(A) */
+    static boolean direct(BufferedImage img) {
+	if (img.getType() == BufferedImage.TYPE_BYTE_GRAY)
+	    return (true);
+	ColorModel cm = img.getColorModel();
+	if ((cm instanceof IndexColorModel) || (cm.getColorSpace().getType() != ColorSpace.TYPE_RGB))
+	    return (false);
+	for (int sz : cm.getComponentSize()) {
+	    if (sz != 8)
+		return (false);
+	}
+	return (true);
+    }
+
+    private static boolean opaque(BufferedImage img) {
+	int w = img.getWidth();
+	int[] row = new int[w];
+	for (int y = 0; y < img.getHeight(); y++) {
+	    img.getRGB(0, y, w, 1, row, 0, w);
+	    for (int p : row) {
+		if ((p >>> 24) != 0xff)
+		    return (false);
+	    }
+	}
+	return (true);
+    }
+
+    /* Filters rows [y0, y1) into f, each prefixed by its filter type */
+    private static void filter(BufferedImage img, int bpp, byte[] f, int y0, int y1) {
+	int w = img.getWidth(), stride = w * bpp;
+	byte[] prev = new byte[stride], cur = new byte[stride];
+	byte[][] tries = (filter == Filter.ADAPTIVE) ? new byte[5][stride] : null;
+	int[] argb = new int[w];
+	Raster r = img.getRaster();
+	if (y0 > 0)
+	    pixels(img, r, bpp, y0 - 1, argb, prev);
+	for (int y = y0; y < y1; y++) {
+	    pixels(img, r, bpp, y, argb, cur);
+	    int o = y * (stride + 1);
+	    if (tries == null) {
+		f[o] = (byte) filter.ordinal();
+		filter(filter.ordinal(), cur, prev, bpp, f, o + 1);
+	    } else {
+		int best = 0;
+		long bsum = Long.MAX_VALUE;
+		for (int t = 0; t < 5; t++) {
+		    filter(t, cur, prev, bpp, tries[t], 0);
+		    long sum = 0;
+		    for (byte b : tries[t])
+			sum += Math.abs(b);
+		    if (sum < bsum) {
+			bsum = sum;
+			best = t;
+		    }
+		}
+		f[o] = (byte) best;
+		System.arraycopy(tries[best], 0, f, o + 1, stride);
+	    }
+	    byte[] t = prev;
+	    prev = cur;
+	    cur = t;
+	}
+    }
+
+    private static void pixels(BufferedImage img, Raster r, int bpp, int y, int[] argb, byte[] dst) {
+	int w = img.getWidth();
+	if (bpp == 1) {
+	    r.getDataElements(0, y, w, 1, dst);
+	    return;
+	}
+	img.getRGB(0, y, w, 1, argb, 0, w);
+	for (int x = 0, o = 0; x < w; x++) {
+	    int p = argb[x];
+	    dst[o++] = (byte) (p >> 16);
+	    dst[o++] = (byte) (p >> 8);
+	    dst[o++] = (byte) p;
+	    if (bpp == 4)
+		dst[o++] = (byte) (p >>> 24);
+	}
+    }
+
+    private static void filter(int t, byte[] cur, byte[] prev, int bpp, byte[] dst, int o) {
+	for (int i = 0; i < cur.length; i++) {
+	    int x = cur[i] & 0xff;
+	    int a = (i >= bpp) ? (cur[i - bpp] & 0xff) : 0;
+	    int b = prev[i] & 0xff;
+	    int c = (i >= bpp) ? (prev[i - bpp] & 0xff) : 0;
+	    switch (t) {
+		case 1:
+		    x -= a;
+		    break;
+		case 2:
+		    x -= b;
+		    break;
+		case 3:
+		    x -= (a + b) >> 1;
+		    break;
+		case 4:
+		    x -= paeth(a, b, c);
+		    break;
+	    }
+	    dst[o + i] = (byte) x;
+	}
+    }
+
+    private static int paeth(int a, int b, int c) {
+	int p = a + b - c;
+	int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+	if (pa <= pb && pa <= pc)
+	    return (a);
+	return ((pb <= pc) ? b : c);
+    }
+
+    /* Raw deflate of f[off, off + len), ending on a byte boundary with a
+     * sync flush unless it is the last piece of the stream */
+    private static byte[] deflate(byte[] f, int off, int len, boolean last) {
+	Deflater d = new Deflater(level, true);
+	try {
+	    if (off > 0) {
+		int dl = Math.min(off, WINDOW);
+		d.setDictionary(f, off - dl, dl);
+	    }
+	    d.setInput(f, off, len);
+	    ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 64);
+	    byte[] buf = new byte[65536];
+	    if (last) {
+		d.finish();
+		while (!d.finished())
+		    out.write(buf, 0, d.deflate(buf));
+	    } else {
+		int n;
+		do {
+		    n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+		    out.write(buf, 0, n);
+		} while (n == buf.length || !d.needsInput());
+	    }
+	    return (out.toByteArray());
+	} finally {
+	    d.end();
+	}
+    }
+
+    private static void chunk(ByteArrayOutputStream out, String type, byte[] data, int off, int len) {
+	byte[] hdr = new byte[8];
+	be32(hdr, 0, len);
+	for (int i = 0; i < 4; i++)
+	    hdr[4 + i] = (byte) type.charAt(i);
+	CRC32 crc = new CRC32();
+	crc.update(hdr, 4, 4);
+	crc.update(data, off, len);
+	out.write(hdr, 0, hdr.length);
+	out.write(data, off, len);
+	byte[] ck = new byte[4];
+	be32(ck, 0, (int) crc.getValue());
+	out.write(ck, 0, ck.length);
+    }
+
+    private static void be32(byte[] buf, int off, int v) {
+	buf[off] = (byte) (v >> 24);
+	buf[off + 1] = (byte) (v >> 16);
+	buf[off + 2] = (byte) (v >> 8);
+	buf[off + 3] = (byte) v;
+    }
+
+    public static Filter filter(String name) {
+	for (Filter f : Filter.values()) {
+	    if (f.name().equalsIgnoreCase(name))
+		return (f);
+	}
+	return (null);
+    }
+}
@@ -30,22 +30,39 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Resource {
     static final String SIG = "Haven Resource 1";
     static final byte[] BSIG = { 72, 97, 118, 101, 110, 32, 82, 101, 115, 111, 117, 114, 99, 101, 32, 49 };
     public static String OUT = "dout/";
+    /* Collects per layer timings when set */
+    public static Stats stats = null;
+    /* Layer types to load from .res files, or null for all of them */
+    public static Set<String> only = null;
+    /* Layer types never to load from .res files */
+    public static Set<String> exclude = null;
+    /* Re-encode source PNGs when encoding instead of embedding them as is */
+    public static boolean recompress = false;
     private static final String END = "\r\n";
-    private static Map<String, Class<? extends Layer>> ltypes = new TreeMap<String, Class<? extends Layer>>();
+    private static final Map<String, LayerCodec> codecs = new TreeMap<String, LayerCodec>();
     public static Class<Image> imgc = Image.class;
     public static Class<Tile> tile = Tile.class;
     public static Class<Neg> negc = Neg.class;
@@ -73,6 +90,12 @@ public class Resource {
     static final int SOURCES = TYPES++;
     static final int OVERLAY = TYPES++;
     static final int MAT2 = TYPES++;
+    static final int RAW = TYPES++;
+
+    /* A type() number for a layer class from another jar */
+    public static synchronized int newtype() {
+	return (TYPES++);
+    }
     /*
       IMAGE	=> .data + .png
       TILE	=> .data + .png
@@ -92,6 +115,11 @@ public class Resource {
     public final String out;
     public final String name;
     public int ver;
+    /* Where each layer went in the last encode() */
+    public List<Manifest.LayerRec> lrecs = null;
+    public int spliced = 0;
+    /* Payloads taken from the previous .res, in file order */
+    private List<Splice> splices = Collections.emptyList();
 
     public static Coord cdec(Message buf) {
 	return (new Coord(buf.int16(), buf.int16()));
@@ -101,6 +129,17 @@ public class Resource {
 	return (new Coord(Utils.int16d(buf, off), Utils.int16d(buf, off + 2)));
     }
 
+    /* Adds or replaces the codec for a layer type */
+    public static void register(LayerCodec c) {
+	synchronized (codecs) {
+	    codecs.put(c.type, c);
+	}
+    }
+
+    public static LayerCodec codec(String type) {
+	return (codecs.get(type));
+    }
+
     public static class LoadException extends RuntimeException {
 	public Resource res;
 
@@ -121,9 +160,10 @@ public class Resource {
     }
 
     public abstract class Layer implements Serializable {
-	public abstract void init();
+	/* Fingerprint of the decoded files this layer was loaded from */
+	transient String srcfp = null;
 
-	public abstract int size();
+	public abstract void init();
 
 	public abstract int type();
 
@@ -131,7 +171,8 @@ public class Resource {
 
 	public abstract void decode(String r, int i) throws Exception;
 
-	public abstract void encode(OutputStream f) throws Exception;
+	/* Writes the payload; the writer keeps track of its length */
+	public abstract void encode(LayerWriter out) throws Exception;
     }
 
     public static class ImageReadException extends IOException {
@@ -142,6 +183,57 @@ public class Resource {
 	}
     }
 
+    static {
+	/* Images are only ever read from and written to memory, so
+	 * ImageIO has no reason to spool its streams to temp files */
+	ImageIO.setUseCache(false);
+    }
+
+    /* Readers found on this thread so far, reused for every image
+     * rather than looking the plugins up again each time. PNG keeps
+     * its ImageWriters the same way. */
+    private static final ThreadLocal<List<ImageReader>> readers = ThreadLocal.withInitial(ArrayList::new);
+
+    private static ImageReader reader(ImageInputStream in) throws IOException {
+	List<ImageReader> rl = readers.get();
+	for (ImageReader r : rl) {
+	    if (candecode(r.getOriginatingProvider(), in))
+		return (r);
+	}
+	Iterator<ImageReader> i = ImageIO.getImageReaders(in);
+	if (!i.hasNext())
+	    return (null);
+	ImageReader r = i.next();
+	rl.add(r);
+	return (r);
+    }
+
+    /* As ImageIO probes a provider: too short input just doesn't match */
+    private static boolean candecode(ImageReaderSpi spi, ImageInputStream in) throws IOException {
+	in.mark();
+	try {
+	    return (spi.canDecodeInput(in));
+	} catch (IOException e) {
+	    return (false);
+	} finally {
+	    in.reset();
+	}
+    }
+
+    private static BufferedImage read(InputStream fp) throws IOException {
+	try (ImageInputStream in = new MemoryCacheImageInputStream(fp)) {
+	    ImageReader r = reader(in);
+	    if(r == null)
+		return (null);
+	    r.setInput(in, true, true);
+	    try {
+		return (r.read(0, r.getDefaultReadParam()));
+	    } finally {
+		r.setInput(null);
+	    }
+	}
+    }
+
     public static BufferedImage readimage(InputStream fp) throws IOException {
 	try {
 	    /* This can crash if not privileged due to ImageIO
@@ -151,7 +243,7 @@ public class Resource {
 	    return (AccessController.doPrivileged(new PrivilegedExceptionAction<BufferedImage>() {
 		public BufferedImage run() throws IOException {
 		    BufferedImage ret;
-		    ret = ImageIO.read(fp);
+		    ret = read(fp);
 		    if(ret == null)
 			throw (new ImageReadException());
 		    return (ret);
@@ -165,7 +257,40 @@ public class Resource {
 	}
     }
 
+    static final byte[] PNGSIG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    /* Image size from the IHDR chunk of PNG data starting at off, or
+     * null if the data is not PNG */
+    public static Coord pngsz(byte[] buf, int off) {
+	if (buf.length - off < 24)
+	    return (null);
+	for (int i = 0; i < PNGSIG.length; i++) {
+	    if (buf[off + i] != PNGSIG[i])
+		return (null);
+	}
+	if (buf[off + 12] != 'I' || buf[off + 13] != 'H' || buf[off + 14] != 'D' || buf[off + 15] != 'R')
+	    return (null);
+	return (new Coord(be32(buf, off + 16), be32(buf, off + 20)));
+    }
+
+    /* The bytes to embed for a source image: the file itself when it
+     * is PNG, otherwise (or with recompress) the image encoded anew */
+    public static byte[] pngdata(File png) throws IOException {
+	byte[] data = Files.readAllBytes(png.toPath());
+	if(!recompress && pngsz(data, 0) != null)
+	    return (data);
+	BufferedImage img = readimage(new ByteArrayInputStream(data));
+	if(img == null)
+	    throw (new IOException("Invalid image data in " + png));
+	return (PNG.encode(img));
+    }
+
+    private static int be32(byte[] buf, int off) {
+	return (((buf[off] & 0xff) << 24) | ((buf[off + 1] & 0xff) << 16) | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff));
+    }
+
     public class Image extends Layer {
+	/* The decoded image when raw isn't PNG data, null otherwise */
 	public transient BufferedImage img;
 	public byte[] raw;
 	public final int z, subz;
@@ -176,7 +301,10 @@ public class Resource {
 	public Map<String, byte[]> kvdata = null;
 
 	public Image(byte[] bytes) {
-	    MessageBuf buf = new MessageBuf(bytes);
+	    this(new MessageBuf(bytes));
+	}
+
+	public Image(Message buf) {
 	    z = buf.int16();/* 2 bytes */
 	    subz = buf.int16();/* 2 bytes */
 	    /* Obsolete flag 1: Layered */
@@ -207,15 +335,23 @@ public class Resource {
 	    }
 	    this.kvdata = kvdata.isEmpty() ? Collections.emptyMap() : kvdata;
 
-	    try {
-		img = readimage(new MessageInputStream(buf));
-	    } catch (IOException e) {
-		throw (new LoadException(e, Resource.this));
+	    /* PNG data is kept as it is, and only decoded for other formats */
+	    raw = buf.bytes();
+	    if((sz = pngsz(raw, 0)) == null) {
+		try {
+		    img = readimage(new ByteArrayInputStream(raw));
+		} catch (IOException e) {
+		    throw (new LoadException(e, Resource.this));
+		}
+		sz = Utils.imgsz(img);
 	    }
-	    sz = Utils.imgsz(img);
 	    if(tsz == null)
 		tsz = sz;
-	    if(img == null) throw (new LoadException("Invalid image data in " + name, Resource.this));
+	}
+
+	/* The decoded image; PNG data is decoded anew on every call */
+	public BufferedImage img() throws IOException {
+	    return ((img != null) ? img : readimage(new ByteArrayInputStream(raw)));
 	}
 
 	public Image(File data, File png) throws Exception {
@@ -245,39 +381,8 @@ public class Resource {
 	    }
 	    this.kvdata = kvdata.isEmpty() ? Collections.emptyMap() : kvdata;
 	    custom = tmp;
-	    img = ImageIO.read(png);
 	    br.close();
-	    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-	    ImageIO.write(img, "png", baos);
-	    baos.flush();
-	    raw = baos.toByteArray();
-	    baos.close();
-	}
-
-	public int size() {
-	    int s = 11;
-	    if(custom) {
-		if(scale != 1) {
-		    s += 6; //'scale\0'
-		    s += 1;//len byte
-		    s += 4;//value
-		}
-		if(tsz != sz) {
-		    s += 4; //'tsz\0'
-		    s += 1; //len byte
-		    s += 8;// 2 int16 values for size
-		}
-		if (!kvdata.isEmpty()) {
-		    for (Map.Entry<String, byte[]> entry : kvdata.entrySet()) {
-			s += entry.getKey().length() + 1; //key +'\0'
-			s += 1;//len byte
-			s += entry.getValue().length;
-		    }
-		}
-		s += 1;//last empty string
-	    }
-	    s += raw.length;
-	    return (s);
+	    raw = pngdata(png);
 	}
 
 	public int type() {
@@ -326,46 +431,50 @@ public class Resource {
 	    }
 	    bw.flush();
 	    bw.close();
-	    ImageIO.write(img, "png", new File(res + "/image/image_" + i + ".png"));
-	}
-
-	public void encode(OutputStream out) throws Exception {
-	    out.write(Utils.byte_int16d(z)); /* 2 bytes */
-	    out.write(Utils.byte_int16d(subz)); /* 2 bytes */
-	    out.write(new byte[]{(byte) ((nooff ? 2 : 0) | (custom ? 4 : 0))}); /* 1 byte */
-	    out.write(Utils.byte_int16d(id)); /* 2 bytes */
-	    out.write(Utils.byte_int16d(o.x)); /* 2 bytes */
-	    out.write(Utils.byte_int16d(o.y)); /* 2 bytes */
+	    File png = new File(res + "/image/image_" + i + ".png");
+	    if(img != null)
+		PNG.write(img, png);
+	    else
+		Files.write(png.toPath(), raw);
+	}
+
+	public void encode(LayerWriter out) throws Exception {
+	    out.adduint16(z); /* 2 bytes */
+	    out.adduint16(subz); /* 2 bytes */
+	    out.adduint8((nooff ? 2 : 0) | (custom ? 4 : 0)); /* 1 byte */
+	    out.adduint16(id); /* 2 bytes */
+	    out.adduint16(o.x); /* 2 bytes */
+	    out.adduint16(o.y); /* 2 bytes */
 	    if(scale != 1) {
-		out.write(Utils.byte_strd("scale"));
-		out.write(4);
-		out.write(Utils.byte_float32d(scale));
+		out.addstring("scale");
+		out.adduint8(4);
+		out.addfloat32(scale);
 	    }
 	    if(tsz != sz) {
-		out.write(Utils.byte_strd("tsz"));
-		out.write(32);
-		out.write(Utils.byte_int32d(tsz.x)); /* 2 bytes */
-		out.write(Utils.byte_int32d(tsz.y)); /* 2 bytes */
+		out.addstring("tsz");
+		out.adduint8(32);
+		out.addint32(tsz.x);
+		out.addint32(tsz.y);
 	    }
 	    if (!kvdata.isEmpty()) {
 		for (Map.Entry<String, byte[]> entry : kvdata.entrySet()) {
-		    out.write(Utils.byte_strd(entry.getKey()));
-		    out.write(entry.getValue().length);
-		    out.write(entry.getValue());
+		    out.addstring(entry.getKey());
+		    out.adduint8(entry.getValue().length);
+		    out.addbytes(entry.getValue());
 		}
 	    }
-	    if(custom) {out.write(Utils.byte_strd(""));}
-	    out.write(raw); /* img bytes */
+	    if(custom) {out.addstring("");}
+	    out.addbytes(raw); /* img bytes */
 	}
     }
 
     static {
-	ltypes.put("image", Image.class);
+	register(new LayerCodec("image", (r, d) -> r.new Image(d), (r, f) -> r.new Image(f[0], f[1]),
+				LayerCodec.set(".data", ".png")));
     }
 
     public class Tooltip extends Layer {
 	public final String t;
-	private int size = 0;
 
 	public Tooltip(byte[] buf) {
 	    try {
@@ -378,14 +487,9 @@ public class Resource {
 	public Tooltip(File data) throws Exception {
 	    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(data), "UTF-8"));
 	    t = Utils.rstr(br);
-	    size = Utils.byte_str(t).length;
 	    br.close();
 	}
 
-	public int size() {
-	    return (size);
-	}
-
 	public int type() {
 	    return TOOLTIP;
 	}
@@ -408,16 +512,18 @@ public class Resource {
 	    bw.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
-	    out.write(Utils.byte_str(t)); /* str bytes */
+	public void encode(LayerWriter out) throws Exception {
+	    out.addstring2(t); /* str bytes */
 	}
     }
 
     static {
-	ltypes.put("tooltip", Tooltip.class);
+	register(new LayerCodec("tooltip", (r, d) -> r.new Tooltip(d.bytes()), (r, f) -> r.new Tooltip(f[0]),
+				LayerCodec.ext(".data")));
     }
 
     public class Tile extends Layer {
+	/* The decoded image when raw isn't PNG data, null otherwise */
 	transient BufferedImage img;
 	byte[] raw;
 	public int id;
@@ -428,12 +534,20 @@ public class Resource {
 	    t = (char) Utils.ub(buf[0]);/* 1 Byte */
 	    id = Utils.ub(buf[1]);/* 1 Byte */
 	    w = Utils.uint16d(buf, 2);/* 2 Bytes */
-	    try {
-		img = ImageIO.read(new ByteArrayInputStream(buf, 4, buf.length - 4));
-	    } catch (IOException e) {
-		throw (new LoadException(e, Resource.this));
+	    /* PNG data is kept as it is, and only decoded for other formats */
+	    raw = Arrays.copyOfRange(buf, 4, buf.length);
+	    if (pngsz(raw, 0) == null) {
+		try {
+		    img = readimage(new ByteArrayInputStream(raw));
+		} catch (IOException e) {
+		    throw (new LoadException(e, Resource.this));
+		}
 	    }
-	    if (img == null) throw (new LoadException("Invalid image data in " + name, Resource.this));
+	}
+
+	/* The decoded image; PNG data is decoded anew on every call */
+	public BufferedImage img() throws IOException {
+	    return ((img != null) ? img : readimage(new ByteArrayInputStream(raw)));
 	}
 
 	public Tile(File data, File png) throws Exception {
@@ -441,20 +555,8 @@ public class Resource {
 	    t = (char) Utils.rnint(br);
 	    id = Utils.rnint(br);
 	    w = Utils.rnint(br);
-	    img = ImageIO.read(png);
 	    br.close();
-
-	    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-	    ImageIO.write(img, "png", baos);
-	    baos.flush();
-	    raw = baos.toByteArray();
-	    baos.close();
-	}
-
-	public int size() {
-	    int s = 4;
-	    s += raw.length;
-	    return (s);
+	    raw = pngdata(png);
 	}
 
 	public int type() {
@@ -478,14 +580,18 @@ public class Resource {
 	    bw.write(Integer.toString(w) + END);
 	    bw.flush();
 	    bw.close();
-	    ImageIO.write(img, "png", new File(res + "/tile/tile_" + i + ".png"));
+	    File png = new File(res + "/tile/tile_" + i + ".png");
+	    if (img != null)
+		PNG.write(img, png);
+	    else
+		Files.write(png.toPath(), raw);
 	}
 
-	public void encode(OutputStream out) throws Exception {
-	    out.write(new byte[] { (byte) (t & 0xFF) }); /* 1 byte */
-	    out.write(new byte[] { (byte) (id & 0xFF) }); /* 1 byte */
-	    out.write(Utils.byte_int16d(w)); /* 2 bytes */
-	    out.write(raw); /* img bytes */
+	public void encode(LayerWriter out) throws Exception {
+	    out.adduint8(t); /* 1 byte */
+	    out.adduint8(id); /* 1 byte */
+	    out.adduint16(w); /* 2 bytes */
+	    out.addbytes(raw); /* img bytes */
 	}
 
 	public void init() {
@@ -493,7 +599,8 @@ public class Resource {
     }
 
     static {
-	ltypes.put("tile", Tile.class);
+	register(new LayerCodec("tile", (r, d) -> r.new Tile(d.bytes()), (r, f) -> r.new Tile(f[0], f[1]),
+				LayerCodec.set(".data", ".png")));
     }
 
     public class Neg extends Layer {
@@ -507,28 +614,30 @@ public class Resource {
 	public ArrayList<Integer> epds = new ArrayList<Integer>();
 
 	public Neg(byte[] buf) {
-	    int off;
+	    this(new MessageBuf(buf));
+	}
 
-	    cc = cdec(buf, 0);/* 4 bytes */
-	    bc = cdec(buf, 4);/* 4 bytes */
-	    bs = cdec(buf, 8);/* 4 bytes */
-	    sz = cdec(buf, 12);/* 4 bytes */
+	public Neg(Message buf) {
+	    cc = cdec(buf);/* 4 bytes */
+	    bc = cdec(buf);/* 4 bytes */
+	    bs = cdec(buf);/* 4 bytes */
+	    sz = cdec(buf);/* 4 bytes */
 	    // bc = MapView.s2m(bc);
 	    // bs = MapView.s2m(bs).add(bc.inv());
 	    ep = new Coord[8][0];
-	    en = buf[16];/* 1 byte */
-	    off = 17;
+	    en = buf.int8();/* 1 byte */
+	    int[] xy = new int[0];
 	    for (int i = 0; i < en; i++) {
-		int epid = buf[off]; /* 1 byte */
-		int cn = Utils.uint16d(buf, off + 1); /* 2 bytes */
+		int epid = buf.int8(); /* 1 byte */
+		int cn = buf.uint16(); /* 2 bytes */
 		epds.add(epid);
 		cns.add(cn);
-		off += 3;
+		if (xy.length < cn * 2)
+		    xy = new int[cn * 2];
+		buf.int16s(xy, cn * 2); /* 4 bytes each */
 		ep[epid] = new Coord[cn];
-		for (int o = 0; o < cn; o++) {
-		    ep[epid][o] = cdec(buf, off); /* 4 bytes */
-		    off += 4;
-		}
+		for (int o = 0; o < cn; o++)
+		    ep[epid][o] = new Coord(xy[o * 2], xy[(o * 2) + 1]);
 	    }
 	}
 
@@ -553,17 +662,6 @@ public class Resource {
 	    br.close();
 	}
 
-	public int size() {
-	    int s = 17;
-	    for (int i = 0; i < cns.size(); ++i) {
-		s += 3;
-		for (int o = 0; o < cns.get(i); ++o) {
-		    s += 4;
-		}
-	    }
-	    return (s);
-	}
-
 	public int type() {
 	    return NEG;
 	}
@@ -607,22 +705,22 @@ public class Resource {
 	    bw.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
-	    out.write(Utils.byte_int16d(cc.x));
-	    out.write(Utils.byte_int16d(cc.y));
-	    out.write(Utils.byte_int16d(bc.x));
-	    out.write(Utils.byte_int16d(bc.y));
-	    out.write(Utils.byte_int16d(bs.x));
-	    out.write(Utils.byte_int16d(bs.y));
-	    out.write(Utils.byte_int16d(sz.x));
-	    out.write(Utils.byte_int16d(sz.y));
-	    out.write(new byte[] { (byte) (en & 0xFF) });
+	public void encode(LayerWriter out) throws Exception {
+	    out.adduint16(cc.x);
+	    out.adduint16(cc.y);
+	    out.adduint16(bc.x);
+	    out.adduint16(bc.y);
+	    out.adduint16(bs.x);
+	    out.adduint16(bs.y);
+	    out.adduint16(sz.x);
+	    out.adduint16(sz.y);
+	    out.adduint8(en);
 	    for (int j = 0; j < cns.size(); ++j) {
-		out.write(new byte[] { (byte) (epds.get(j) & 0xFF) });
-		out.write(Utils.byte_int16d(cns.get(j)));
+		out.adduint8(epds.get(j));
+		out.adduint16(cns.get(j));
 		for (int o = 0; o < cns.get(j); ++o) {
-		    out.write(Utils.byte_int16d(ep[epds.get(j)][o].x));
-		    out.write(Utils.byte_int16d(ep[epds.get(j)][o].y));
+		    out.adduint16(ep[epds.get(j)][o].x);
+		    out.adduint16(ep[epds.get(j)][o].y);
 		}
 	    }
 	}
@@ -632,7 +730,8 @@ public class Resource {
     }
 
     static {
-	ltypes.put("neg", Neg.class);
+	register(new LayerCodec("neg", (r, d) -> r.new Neg(d), (r, f) -> r.new Neg(f[0]),
+				LayerCodec.ext(".data")));
     }
 
     public class Obst extends Layer {
@@ -641,7 +740,10 @@ public class Resource {
 	final List<Coord2d[]> polygons;
 
 	public Obst(byte[] buf) {
-	    MessageBuf msg = new MessageBuf(buf);
+	    this(new MessageBuf(buf));
+	}
+
+	public Obst(Message msg) {
 	    version = msg.int8();
 	    if(version >= 2) {
 		id = msg.string();
@@ -657,8 +759,10 @@ public class Resource {
 	    for (int i = 0; i < polygonCount; i++) {
 		int points = polygonSizes[i];
 		Coord2d[] polygon = new Coord2d[points];
+		float[] xy = new float[points * 2];
+		msg.float16s(xy, xy.length);
 		for (int j = 0; j < points; j++) {
-		    polygon[j] = new Coord2d(msg.float16(), msg.float16());
+		    polygon[j] = new Coord2d(xy[j * 2], xy[(j * 2) + 1]);
 		}
 		polygons.add(polygon);
 	    }
@@ -675,10 +779,6 @@ public class Resource {
 	    br.close();
 	}
 
-	public int size() {
-	    return (0);//FIXME
-	}
-
 	public int type() {
 	    return OBST;
 	}
@@ -696,8 +796,8 @@ public class Resource {
 	    bw.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
-
+	public void encode(LayerWriter out) throws Exception {
+	    //FIXME
 	}
 
 	public void init() {
@@ -705,7 +805,7 @@ public class Resource {
     }
 
     static {
-	ltypes.put("obst", Obst.class);
+	register(new LayerCodec("obst", (r, d) -> r.new Obst(d)));
     }
 
     public class Anim extends Layer {
@@ -714,14 +814,20 @@ public class Resource {
 	public Image[][] f;
 
 	public Anim(byte[] buf) {
-	    id = Utils.int16d(buf, 0);/* 2 bytes */
-	    d = Utils.uint16d(buf, 2);/* 2 bytes */
-	    ids = new int[Utils.uint16d(buf, 4)];/* 2 bytes */
-	    if (buf.length - 6 != ids.length * 2)
-		throw (new LoadException("Invalid anim descriptor in " + name, Resource.this));
-	    for (int i = 0; i < ids.length; i++) {
-		ids[i] = Utils.int16d(buf, 6 + (i * 2)); /* 2 bytes */
+	    this(new MessageBuf(buf));
+	}
+
+	public Anim(Message buf) {
+	    id = buf.int16();/* 2 bytes */
+	    d = buf.uint16();/* 2 bytes */
+	    ids = new int[buf.uint16()];/* 2 bytes */
+	    try {
+		buf.int16s(ids, ids.length); /* 2 bytes each */
+	    } catch (Message.EOF e) {
+		throw (new LoadException("Invalid anim descriptor in " + name, e, Resource.this));
 	    }
+	    if (!buf.eom())
+		throw (new LoadException("Invalid anim descriptor in " + name, Resource.this));
 	}
 
 	public Anim(File data) throws Exception {
@@ -735,12 +841,6 @@ public class Resource {
 	    br.close();
 	}
 
-	public int size() {
-	    int s = 6;
-	    s += (2 * ids.length);
-	    return (s);
-	}
-
 	public int type() {
 	    return ANIM;
 	}
@@ -768,12 +868,12 @@ public class Resource {
 	    bw.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
-	    out.write(Utils.byte_int16d(id));
-	    out.write(Utils.byte_int16d(d));
-	    out.write(Utils.byte_int16d(ids.length));
+	public void encode(LayerWriter out) throws Exception {
+	    out.adduint16(id);
+	    out.adduint16(d);
+	    out.adduint16(ids.length);
 	    for (int i = 0; i < ids.length; ++i)
-		out.write(Utils.byte_int16d(ids[i]));
+		out.adduint16(ids[i]);
 	}
 
 	public void init() {
@@ -781,7 +881,8 @@ public class Resource {
     }
 
     static {
-	ltypes.put("anim", Anim.class);
+	register(new LayerCodec("anim", (r, d) -> r.new Anim(d), (r, f) -> r.new Anim(f[0]),
+				LayerCodec.ext(".data")));
     }
 
     public class Tileset extends Layer {
@@ -792,8 +893,6 @@ public class Resource {
 	int flnum;
 	int flavprob;
 
-	private int size = 0;
-
 	public Tileset(byte[] buf) {
 	    int[] off = new int[1];
 	    off[0] = 0;
@@ -821,21 +920,14 @@ public class Resource {
 	    fln = new String[flnum];
 	    flv = new int[flnum];
 	    flw = new int[flnum];
-	    size = 5;
 	    for (int j = 0; j < flnum; j++) {
 		fln[j] = Utils.rnstr(br);
-		size += Utils.byte_strd(fln[j]).length;
 		flv[j] = Utils.rnint(br);
 		flw[j] = Utils.rnint(br);
-		size += 3;
 	    }
 	    br.close();
 	}
 
-	public int size() {
-	    return (size);
-	}
-
 	public int type() {
 	    return TILESET;
 	}
@@ -867,14 +959,14 @@ public class Resource {
 	    bw.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
-	    out.write(new byte[] { (byte) (fl & 0xFF) });
-	    out.write(Utils.byte_int16d(flnum));
-	    out.write(Utils.byte_int16d(flavprob));
+	public void encode(LayerWriter out) throws Exception {
+	    out.adduint8(fl);
+	    out.adduint16(flnum);
+	    out.adduint16(flavprob);
 	    for (int j = 0; j < flnum; ++j) {
-		out.write(Utils.byte_strd(fln[j]));
-		out.write(Utils.byte_int16d(flv[j]));
-		out.write(new byte[] { (byte) (flw[j] & 0xFF) });
+		out.addstring(fln[j]);
+		out.adduint16(flv[j]);
+		out.adduint8(flw[j]);
 	    }
 	}
 
@@ -883,12 +975,12 @@ public class Resource {
     }
 
     static {
-	ltypes.put("tileset", Tileset.class);
+	register(new LayerCodec("tileset", (r, d) -> r.new Tileset(d.bytes()), (r, f) -> r.new Tileset(f[0]),
+				LayerCodec.ext(".data")));
     }
 
     public class Pagina extends Layer {
 	public final String text;
-	private int size = 0;
 
 	public Pagina(byte[] buf) {
 	    try {
@@ -901,14 +993,9 @@ public class Resource {
 	public Pagina(File data) throws Exception {
 	    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(data), "UTF-8"));
 	    text = Utils.rnstr(br);
-	    size = Utils.byte_strd(text).length;
 	    br.close();
 	}
 
-	public int size() {
-	    return (size);
-	}
-
 	public int type() {
 	    return PAGINA;
 	}
@@ -928,8 +1015,8 @@ public class Resource {
 	    bw.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
-	    out.write(Utils.byte_strd(text));
+	public void encode(LayerWriter out) throws Exception {
+	    out.addstring(text);
 	}
 
 	public void init() {
@@ -937,7 +1024,8 @@ public class Resource {
     }
 
     static {
-	ltypes.put("pagina", Pagina.class);
+	register(new LayerCodec("pagina", (r, d) -> r.new Pagina(d.bytes()), (r, f) -> r.new Pagina(f[0]),
+				LayerCodec.ext(".data")));
     }
 
     public class AButton extends Layer {
@@ -948,7 +1036,6 @@ public class Resource {
 	int adl;
 	int pver;
 	String pr;
-	int size = 0;
 
 	public AButton(byte[] buf) {
 	    int[] off = new int[1];
@@ -969,25 +1056,16 @@ public class Resource {
 	public AButton(File data) throws Exception {
 	    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(data), "UTF-8"));
 	    pr = Utils.rnstr(br);
-	    size = Utils.byte_strd(pr).length;
 	    pver = Utils.rnint(br);
 	    name = Utils.rnstr(br);
-	    size += Utils.byte_strd(name).length;
 	    preq = Utils.rnstr(br);
-	    size += Utils.byte_strd(preq).length;
 	    hk = (char) Utils.rnint(br);
 	    ad = new String[Utils.rnint(br)];
-	    for (int j = 0; j < ad.length; ++j) {
+	    for (int j = 0; j < ad.length; ++j)
 		ad[j] = Utils.rnstr(br);
-		size += Utils.byte_strd(ad[j]).length;
-	    }
 	    br.close();
 	}
 
-	public int size() {
-	    return (size + 6);
-	}
-
 	public int type() {
 	    return ABUTTON;
 	}
@@ -1021,15 +1099,15 @@ public class Resource {
 	    bw.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
-	    out.write(Utils.byte_strd(pr));
-	    out.write(Utils.byte_int16d(pver));
-	    out.write(Utils.byte_strd(name));
-	    out.write(Utils.byte_strd(preq));
-	    out.write(Utils.byte_int16d(hk));
-	    out.write(Utils.byte_int16d(ad.length));
+	public void encode(LayerWriter out) throws Exception {
+	    out.addstring(pr);
+	    out.adduint16(pver);
+	    out.addstring(name);
+	    out.addstring(preq);
+	    out.adduint16(hk);
+	    out.adduint16(ad.length);
 	    for (int j = 0; j < ad.length; ++j)
-		out.write(Utils.byte_strd(ad[j]));
+		out.addstring(ad[j]);
 	}
 
 	public void init() {
@@ -1037,13 +1115,13 @@ public class Resource {
     }
 
     static {
-	ltypes.put("action", AButton.class);
+	register(new LayerCodec("action", (r, d) -> r.new AButton(d.bytes()), (r, f) -> r.new AButton(f[0]),
+				LayerCodec.ext(".data")));
     }
 
     public class Code extends Layer {
 	public final String name;
 	transient public final byte[] data;
-	private int size = 0;
 
 	public Code(byte[] buf) {
 	    int[] off = new int[1];
@@ -1056,7 +1134,6 @@ public class Resource {
 	public Code(File dat, File clas) throws Exception {
 	    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(dat), "UTF-8"));
 	    name = Utils.rnstr(br);
-	    size = Utils.byte_strd(name).length;
 	    byte[] tmp = Utils.readBytes(clas);
 	    if(!Utils.isJavaClass(tmp)) {
 		clas = new File(clas.getParentFile() + File.separator + new String(tmp));
@@ -1066,10 +1143,6 @@ public class Resource {
 	    br.close();
 	}
 
-	public int size() {
-	    return (size + data.length);
-	}
-
 	public int type() {
 	    return CODE;
 	}
@@ -1095,9 +1168,9 @@ public class Resource {
 	    fout.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
-	    out.write(Utils.byte_strd(name));
-	    out.write(data);
+	public void encode(LayerWriter out) throws Exception {
+	    out.addstring(name);
+	    out.addbytes(data);
 	}
 
 	public void init() {
@@ -1105,17 +1178,20 @@ public class Resource {
     }
 
     static {
-	ltypes.put("code", Code.class);
+	register(new LayerCodec("code", (r, d) -> r.new Code(d.bytes()), (r, f) -> r.new Code(f[0], f[1]),
+				LayerCodec.set(".data", ".class")));
     }
 
     public class CodeEntry extends Layer {
-	private int size = 0;
 	private ArrayList<String> key = new ArrayList<>();
 	private ArrayList<String> value = new ArrayList<>();
 	private Map<String, Integer> requires = new HashMap<>();
 
 	public CodeEntry(byte[] buf) {
-	    MessageBuf msg = new MessageBuf(buf);
+	    this(new MessageBuf(buf));
+	}
+
+	public CodeEntry(Message msg) {
 	    while (!msg.eom()) {
 		int t = msg.uint8();
 		if(t == 1) {
@@ -1146,41 +1222,24 @@ public class Resource {
 	    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(data), "UTF-8"));
 	    String t;
 	    int s = Utils.rnint(br);
-	    if(s > 0) {
-		size += 1;//type
-		for (int j = 0; j < s; ++j) {
-		    t = Utils.rnstr(br);
-		    key.add(t);
-		    size += Utils.byte_strd(t).length;
-		    t = Utils.rnstr(br);
-		    value.add(t);
-		    size += Utils.byte_strd(t).length;
-		}
-		size += 2;//double 0 for end
+	    for (int j = 0; j < s; ++j) {
+		key.add(Utils.rnstr(br));
+		value.add(Utils.rnstr(br));
 	    }
 
 	    //requirements
 	    String len = Utils.rnstr(br);
 	    if(len != null) {
 		s = Integer.parseInt(len);
-		size += 1;//type
 		for (int i = 0; i < s; i++) {
 		    t = Utils.rnstr(br);
-		    size += Utils.byte_strd(t).length;
-		    int v = Utils.rnint(br);
-		    size += 2;
-		    requires.put(t, v);
+		    requires.put(t, Utils.rnint(br));
 		}
-		size += 1;// 0 to end
 	    }
 
 	    br.close();
 	}
 
-	public int size() {
-	    return (size);
-	}
-
 	public int type() {
 	    return CODEENTRY;
 	}
@@ -1218,23 +1277,23 @@ public class Resource {
 	    bw.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
+	public void encode(LayerWriter out) throws Exception {
 	    if(key.size() > 0) {
-		out.write((byte) 1);
+		out.adduint8(1);
 		for (int i = 0; i < key.size(); ++i) {
-		    out.write(Utils.byte_strd(key.get(i)));
-		    out.write(Utils.byte_strd(value.get(i)));
+		    out.addstring(key.get(i));
+		    out.addstring(value.get(i));
 		}
-		out.write((byte) 0);
-		out.write((byte) 0);
+		out.adduint8(0);
+		out.adduint8(0);
 	    }
 	    if(!requires.isEmpty()) {
-		out.write((byte) 2);
+		out.adduint8(2);
 		for (Map.Entry<String, Integer> e : requires.entrySet()) {
-		    out.write(Utils.byte_strd(e.getKey()));
-		    out.write(Utils.byte_int16d(e.getValue()));
+		    out.addstring(e.getKey());
+		    out.adduint16(e.getValue());
 		}
-		out.write((byte) 0);
+		out.adduint8(0);
 	    }
 	}
 
@@ -1243,7 +1302,8 @@ public class Resource {
     }
 
     static {
-	ltypes.put("codeentry", CodeEntry.class);
+	register(new LayerCodec("codeentry", (r, d) -> r.new CodeEntry(d), (r, f) -> r.new CodeEntry(f[0]),
+				LayerCodec.ext(".data")));
     }
 
     public class Audio extends Layer {
@@ -1264,10 +1324,6 @@ public class Resource {
 	    fis.close();
 	}
 
-	public int size() {
-	    return (raw.length);
-	}
-
 	public int type() {
 	    return AUDIO;
 	}
@@ -1285,8 +1341,8 @@ public class Resource {
 	    fout.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
-	    out.write(raw);
+	public void encode(LayerWriter out) throws Exception {
+	    out.addbytes(raw);
 	}
 
 	public void init() {
@@ -1294,7 +1350,8 @@ public class Resource {
     }
 
     static {
-	ltypes.put("audio", Audio.class);
+	register(new LayerCodec("audio", (r, d) -> r.new Audio(d.bytes()), (r, f) -> r.new Audio(f[0]),
+				LayerCodec.ext(".ogg")));
     }
 
     public class Music extends Resource.Layer {
@@ -1315,8 +1372,6 @@ public class Resource {
 	    fis.close();
 	}
 
-	public int size() { return (raw.length); }
-
 	public int type() { return MUSIC; }
 
 	@Override
@@ -1332,8 +1387,8 @@ public class Resource {
 	    fout.close();
 	}
 
-	public void encode(OutputStream out) throws Exception {
-	    out.write(raw);
+	public void encode(LayerWriter out) throws Exception {
+	    out.addbytes(raw);
 	}
 
 	public void init() {
@@ -1341,7 +1396,8 @@ public class Resource {
     }
 
     static {
-	ltypes.put("midi", Music.class);
+	register(new LayerCodec("midi", (r, d) -> r.new Music(d.bytes()), (r, f) -> r.new Music(f[0]),
+				LayerCodec.ext(".midi")));
     }
 
     public class Sources extends Resource.Layer {
@@ -1364,9 +1420,6 @@ public class Resource {
 	@Override
 	public void init() { }
 
-	@Override
-	public int size() { return raw.length; }
-
 	@Override
 	public int type() { return SOURCES; }
 
@@ -1385,13 +1438,14 @@ public class Resource {
 	}
 
 	@Override
-	public void encode(OutputStream out) throws Exception {
-	    out.write(raw);
+	public void encode(LayerWriter out) throws Exception {
+	    out.addbytes(raw);
 	}
     }
 
     static {
-	ltypes.put("src", Sources.class);
+	register(new LayerCodec("src", (r, d) -> r.new Sources(d.bytes()), (r, f) -> r.new Sources(f[0]),
+				LayerCodec.ext(".java")));
     }
 
     public class Overlay extends Resource.Layer {
@@ -1400,36 +1454,57 @@ public class Resource {
 	int omatid = -1;
 
 	public Overlay(byte[] bytes) {
-	    MessageBuf buf = new MessageBuf(bytes);
+	    this(new MessageBuf(bytes));
+	}
+
+	public Overlay(Message buf) {
 	    int ver = buf.uint8();
 	    if (ver == 1) {
-		int matid = 0, omatid = -1;
-		Collection<String> tags = Collections.emptyList();
-		Object[] data = buf.list();
-		for (Object argp : data) {
-		    Object[] arg = (Object[]) argp;
-		    switch ((String) arg[0]) {
-			case "tags": {
-			    ArrayList<String> tbuf = new ArrayList<>();
-			    for (int i = 1; i < arg.length; i++)
-				tbuf.add(((String) arg[i]).intern());
-			    tbuf.trimToSize();
-			    tags = tbuf;
-			    break;
+		matid = 0;
+		tags = Collections.emptyList();
+		/* A list of argument lists: ("tags", tag...), ("mat", id)
+		 * and ("omat", id) */
+		buf.list(new TtoVisitor() {
+			int depth = 0, n;
+			String key;
+			ArrayList<String> tbuf;
+
+			public void beginList() {
+			    if (++depth == 1) {
+				key = null;
+				n = 0;
+			    }
 			}
-			case "mat": {
-			    matid = (Integer) arg[1];
-			    break;
+
+			public void endList() {
+			    if ((depth-- == 1) && (tbuf != null)) {
+				tbuf.trimToSize();
+				tags = tbuf;
+				tbuf = null;
+			    }
 			}
-			case "omat": {
-			    omatid = (Integer) arg[1];
-			    break;
+
+			public void onString(String v) {
+			    if (depth != 1)
+				return;
+			    if (n++ == 0) {
+				key = v;
+				if (key.equals("tags"))
+				    tbuf = new ArrayList<>();
+			    } else if (tbuf != null) {
+				tbuf.add(v.intern());
+			    }
 			}
-		    }
-		}
-		this.matid = matid;
-		this.omatid = omatid;
-		this.tags = tags;
+
+			public void onInt(int v) {
+			    if ((depth != 1) || (n++ != 1))
+				return;
+			    if ("mat".equals(key))
+				matid = v;
+			    else if ("omat".equals(key))
+				omatid = v;
+			}
+		    });
 	    }
 	}
 
@@ -1454,39 +1529,11 @@ public class Resource {
 	public void init() {
 	}
 
-	@Override
-	public int size() {
-	    return bytes().length;
-	}
-
 	@Override
 	public int type() {
 	    return OVERLAY;
 	}
 
-	public byte[] bytes() {
-	    MessageBuf buf = new MessageBuf();
-	    Object[] tags = new Object[this.tags.size() + 1];
-	    tags[0] = "tags";
-	    int i = 1;
-	    for (String tag : this.tags) {
-		tags[i] = tag;
-		i++;
-	    }
-	    List<Object> data = new ArrayList<>(3);
-	    data.add(tags);
-	    if (matid != 0) {
-		data.add(new Object[]{"mat", matid});
-	    }
-	    if (omatid != -1) {
-		data.add(new Object[]{"omat", omatid});
-	    }
-	    Object[] args = data.toArray();
-	    buf.addlist(args);
-	    byte[] bytes = buf.fin();
-	    return bytes;
-	}
-
 	@Override
 	public byte[] type_buffer() {
 	    return new byte[]{111, 118, 101, 114, 108, 97, 121, 0};
@@ -1512,13 +1559,31 @@ public class Resource {
 	}
 
 	@Override
-	public void encode(OutputStream out) throws Exception {
-	    out.write(bytes());
+	public void encode(LayerWriter out) throws Exception {
+	    TtoWriter w = new TtoWriter(out);
+	    w.beginList();
+	    w.onString("tags");
+	    for (String tag : tags)
+		w.onString(tag);
+	    w.endList();
+	    if (matid != 0) {
+		w.beginList();
+		w.onString("mat");
+		w.onInt(matid);
+		w.endList();
+	    }
+	    if (omatid != -1) {
+		w.beginList();
+		w.onString("omat");
+		w.onInt(omatid);
+		w.endList();
+	    }
 	}
     }
 
     static {
-	ltypes.put("overlay", Overlay.class);
+	register(new LayerCodec("overlay", (r, d) -> r.new Overlay(d), (r, f) -> r.new Overlay(f[0]),
+				LayerCodec.ext(".data")));
     }
 
     public class NewMat extends Resource.Layer {
@@ -1530,7 +1595,10 @@ public class Resource {
 	Data data = new Data();
 
 	public NewMat(byte[] bytes) {
-	    MessageBuf buf = new MessageBuf(bytes);
+	    this(new MessageBuf(bytes));
+	}
+
+	public NewMat(Message buf) {
 	    data.id = buf.uint16();
 	    while (!buf.eom()) {
 		data.mats.put(buf.string(), buf.list());
@@ -1549,24 +1617,11 @@ public class Resource {
 	public void init() {
 	}
 
-	@Override
-	public int size() {
-	    return bytes().length;
-	}
-
 	@Override
 	public int type() {
 	    return MAT2;
 	}
 
-	public byte[] bytes() {
-	    MessageBuf buf = new MessageBuf();
-	    buf.adduint16(data.id);
-
-	    byte[] bytes = buf.fin();
-	    return bytes;
-	}
-
 	@Override
 	public byte[] type_buffer() {
 	    return new byte[]{109, 97, 116, 50, 0};
@@ -1585,13 +1640,134 @@ public class Resource {
 	}
 
 	@Override
-	public void encode(OutputStream out) throws Exception {
-	    out.write(bytes());
+	public void encode(LayerWriter out) throws Exception {
+	    out.adduint16(data.id);
+	}
+    }
+
+    static {
+	register(new LayerCodec("mat2", (r, d) -> r.new NewMat(d), (r, f) -> r.new NewMat(f[0]),
+				LayerCodec.ext(".json")));
+    }
+
+    /* Codecs from other jars, which may also replace built in ones */
+    static {
+	for (LayerCodec.Provider p : ServiceLoader.load(LayerCodec.Provider.class, Resource.class.getClassLoader())) {
+	    for (LayerCodec c : p.codecs())
+		register(c);
+	}
+    }
+
+    /* An unchanged layer payload copied as-is from the previously
+     * encoded .res. It is not a Layer: only encode() ever sees it, and
+     * writes it back in its place among the layers. */
+    static class Splice {
+	final byte[] tbuf;
+	final byte[] raw;
+	final String srcfp;
+	/* How many layers come before it */
+	final int at;
+
+	Splice(String type, byte[] raw, String srcfp, int at) {
+	    this.tbuf = (type + "\0").getBytes(StandardCharsets.UTF_8);
+	    this.raw = raw;
+	    this.srcfp = srcfp;
+	    this.at = at;
+	}
+    }
+
+    /* A layer of a type with no codec, kept as its bare payload. All of
+     * them are decoded to raw/<type>_<n>.bin, numbered in file order,
+     * with the type escaped by rawesc(). */
+    public class Raw extends Layer {
+	private static final long serialVersionUID = 1L;
+	final String tname;
+	final byte[] raw;
+
+	public Raw(String type, byte[] raw) {
+	    this.tname = type;
+	    this.raw = raw;
+	}
+
+	public Raw(File bin) throws Exception {
+	    Matcher m = RAWFILE.matcher(bin.getName());
+	    if (!m.matches()) throw (new LoadException("Invalid raw layer file " + bin, Resource.this));
+	    this.tname = rawunesc(m.group(1));
+	    this.raw = Files.readAllBytes(bin.toPath());
+	}
+
+	public void init() {
+	}
+
+	public int type() {
+	    return RAW;
+	}
+
+	public byte[] type_buffer() {
+	    return ((tname + "\0").getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	public void decode(String res, int i) throws Exception {
+	    new File(res + "/raw/").mkdirs();
+	    Files.write(Paths.get(res + "/raw/" + rawesc(tname) + "_" + i + ".bin"), raw);
+	}
+
+	public void encode(LayerWriter out) throws Exception {
+	    out.addbytes(raw);
+	}
+    }
+
+    private static final Pattern RAWFILE = Pattern.compile("(.*)_(\\d+)\\.bin");
+
+    /* Type names come from the .res file, so every byte but
+     * [A-Za-z0-9_-] is written as %XX to keep them to plain file names.
+     * Anything else read back is taken as it is, as older decodes wrote
+     * the names unescaped. */
+    static String rawesc(String type) {
+	StringBuilder buf = new StringBuilder();
+	for (byte b : type.getBytes(StandardCharsets.ISO_8859_1)) {
+	    if ((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '_' || b == '-')
+		buf.append((char) b);
+	    else
+		buf.append(String.format("%%%02X", b & 0xff));
+	}
+	return (buf.toString());
+    }
+
+    static String rawunesc(String name) {
+	byte[] buf = new byte[name.length()];
+	int n = 0;
+	for (int i = 0; i < name.length(); i++) {
+	    char c = name.charAt(i);
+	    if (c == '%') {
+		int h = (i + 2 < name.length()) ? Character.digit(name.charAt(i + 1), 16) : -1;
+		int l = (h >= 0) ? Character.digit(name.charAt(i + 2), 16) : -1;
+		if (l < 0)
+		    throw (new IllegalArgumentException("Invalid raw layer name " + name));
+		buf[n++] = (byte) ((h << 4) | l);
+		i += 2;
+	    } else {
+		buf[n++] = (byte) c;
+	    }
 	}
+	return (new String(buf, 0, n, StandardCharsets.ISO_8859_1));
     }
 
     static {
-	ltypes.put("mat2", NewMat.class);
+	register(new LayerCodec("raw", null, (r, f) -> r.new Raw(f[0]), files -> {
+		    List<File[]> ret = new ArrayList<File[]>();
+		    for (File f : files) {
+			if (RAWFILE.matcher(f.getName()).matches())
+			    ret.add(new File[] {f});
+		    }
+		    /* Back in file order, across types */
+		    ret.sort(Comparator.comparingLong(f -> {
+				Matcher m = RAWFILE.matcher(f[0].getName());
+				m.matches();
+				return (Long.parseLong(m.group(2)));
+			    }));
+		    return (ret);
+		}));
     }
 
     public Resource(String full, String name, String out, boolean w) throws Exception {
@@ -1599,7 +1775,7 @@ public class Resource {
 	this.name = name;
 	if(w) {
 	    /* should be in .res format */
-	    load(new FileInputStream(new File(full)));
+	    load(read(new File(full)));
 	} else {
 	    /* decoded format */
 	    loadfromdecode(full);
@@ -1610,71 +1786,126 @@ public class Resource {
 	this(full, name, OUT, w);
     }
 
-    private void readall(InputStream in, byte[] buf) throws IOException {
-	int ret, off = 0;
-	while (off < buf.length) {
-	    ret = in.read(buf, off, buf.length - off);
-	    if (ret < 0) throw (new LoadException("Incomplete resource at " + name, this));
-	    off += ret;
+    /* Loads a decoded directory, taking every layer whose source files
+     * are unchanged since prev was recorded straight from the existing
+     * .res instead of rebuilding it. */
+    public Resource(String full, String name, String out, List<Manifest.LayerRec> prev) throws Exception {
+	this.out = out;
+	this.name = name;
+	loadfromdecode(full, prev);
+    }
+
+    /* Parses an already read .res file */
+    public Resource(byte[] data, String name, String out) throws Exception {
+	this.out = out;
+	this.name = name;
+	load(ByteBuffer.wrap(data));
+    }
+
+    /* Files at least this big are mapped rather than read */
+    public static int MAPMIN = 64 << 10;
+
+    /* The whole of a .res file, mapped if it is big enough to be worth
+     * it and otherwise read with a single bulk read */
+    public static ByteBuffer read(File f) throws IOException {
+	try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+	    long sz = fc.size();
+	    if (sz > Integer.MAX_VALUE) throw (new IOException("Resource too large: " + f));
+	    if (sz >= MAPMIN)
+		return (fc.map(FileChannel.MapMode.READ_ONLY, 0, sz));
+	    ByteBuffer buf = ByteBuffer.allocate((int) sz);
+	    while (buf.hasRemaining()) {
+		if (fc.read(buf) < 0) break;
+	    }
+	    buf.flip();
+	    return (buf);
 	}
     }
 
-    private void load(InputStream in) throws Exception {
-	byte buf[] = new byte[SIG.length()];
-	readall(in, buf);/* String */
-	if (!SIG.equals(new String(buf))) throw (new LoadException("Invalid res signature", this));
-	buf = new byte[2];
-	readall(in, buf);
-	ver = Utils.uint16d(buf, 0); /* 2 bytes */
-	List<Layer> layers = new LinkedList<Layer>();
-	outer: while (true) {
-	    StringBuilder tbuf = new StringBuilder();
-	    while (true) { /* load in layer type */
-		byte bb;
-		int ib;
-		if ((ib = in.read()) == -1) { /* 1 byte */
-		    if (tbuf.length() == 0) break outer;
-		    throw (new LoadException("Incomplete resource at " + name, this));
-		}
-		bb = (byte) ib;
-		if (bb == 0) break;
-		tbuf.append((char) bb);
+    /* Opens a .res reading only its layer headers. Layers are built
+     * the first time layer(), layers() or layers(type) asks for them. */
+    public static Resource index(File f, String name, String out) throws Exception {
+	return (new Resource(read(f), name, out));
+    }
+
+    public static Resource index(byte[] data, String name, String out) throws Exception {
+	return (new Resource(ByteBuffer.wrap(data), name, out));
+    }
+
+    private Resource(ByteBuffer src, String name, String out) throws Exception {
+	this.out = out;
+	this.name = name;
+	this.src = src;
+	this.index = scan(src);
+	this.layers = null;
+    }
+
+    /* Where a layer is in the .res, and the layer itself once built */
+    public class LayerRef {
+	public final String type;
+	public final int off, len;
+	private Layer l;
+
+	LayerRef(String type, int off, int len) {
+	    this.type = type;
+	    this.off = off;
+	    this.len = len;
+	}
+
+	public synchronized Layer get() {
+	    if (l == null) {
+		l = build(type, payload(src, this));
+		l.init();
 	    }
+	    return (l);
+	}
+    }
 
-	    /* get length of layer */
-	    buf = new byte[4];
-	    readall(in, buf);
-	    int len = Utils.int32d(buf, 0); /* 4 bytes */
-	    /* read in rest of data and init layer */
-	    buf = new byte[len];
-	    readall(in, buf);
-	    String layerName = tbuf.toString();
-	    Class<? extends Layer> lc = ltypes.get(layerName);
-	    if(lc == null) {
-		System.out.println(String.format("Couldn't find  layer class for '%s'", layerName));
+    /* Only set for resources opened with index() */
+    private ByteBuffer src;
+    private List<LayerRef> index;
+
+    /* Reads the signature and every layer header, skipping payloads */
+    private List<LayerRef> scan(ByteBuffer in) {
+	Header h;
+	try {
+	    h = Header.read(in);
+	} catch (IOException e) {
+	    throw (new LoadException(e.getMessage() + " in " + name, e, this));
+	}
+	ver = h.ver;
+	int base = in.position();
+	List<LayerRef> ret = new ArrayList<LayerRef>(h.layers.size());
+	for (Header.Layer l : h.layers)
+	    ret.add(new LayerRef(l.type, base + (int) l.off, l.len));
+	return (ret);
+    }
+
+    /* A view of the payload; layers read it without copying it first */
+    private static ByteBuffer payload(ByteBuffer in, LayerRef r) {
+	ByteBuffer b = in.duplicate();
+	b.position(r.off);
+	b.limit(r.off + r.len);
+	return (b.slice());
+    }
+
+    private Layer build(String type, ByteBuffer buf) {
+	long st = System.nanoTime();
+	int len = buf.remaining();
+	LayerCodec c = codecs.get(type);
+	Message msg = new MessageByteBuffer(buf);
+	Layer l = (c == null || c.bin == null) ? new Raw(type, msg.bytes()) : c.bin.make(this, msg);
+	if (stats != null) stats.load(type, len, System.nanoTime() - st);
+	return (l);
+    }
+
+    private void load(ByteBuffer in) throws Exception {
+	List<Layer> layers = new LinkedList<Layer>();
+	for (LayerRef r : scan(in)) {
+	    if (!wanted(r.type))
 		continue;
-	    }
-	    Constructor<? extends Layer> cons;
-	    try {
-		cons = lc.getConstructor(Resource.class, byte[].class);
-	    } catch (NoSuchMethodException e) {
-		throw (new LoadException(e, Resource.this));
-	    }
-	    Layer l;
-	    try {
-		l = cons.newInstance(this, buf);
-	    } catch (InstantiationException e) {
-		throw (new LoadException(e, Resource.this));
-	    } catch (InvocationTargetException e) {
-		Throwable c = e.getCause();
-		if (c instanceof RuntimeException)
-		    throw ((RuntimeException) c);
-		else
-		    throw (new LoadException(c, Resource.this));
-	    } catch (IllegalAccessException e) {
-		throw (new LoadException(e, Resource.this));
-	    }
-	    layers.add(l);
+	    /* read in rest of data and init layer */
+	    layers.add(build(r.type, payload(in, r)));
 	}
 
 	this.layers = layers;
@@ -1682,6 +1913,74 @@ public class Resource {
 	    l.init();
     }
 
+    public static boolean wanted(String type) {
+	return ((only == null || only.contains(type)) && (exclude == null || !exclude.contains(type)));
+    }
+
+    /* The settings that change what encoding the same decoded files
+     * gives, as a string to compare runs by */
+    public static String encoding() {
+	return ("recompress=" + recompress + " pnglevel=" + PNG.level + " pngfilter=" + PNG.filter);
+    }
+
+    /* only and exclude as a string to compare runs by, or null if
+     * every layer is loaded */
+    public static String filter() {
+	if (only == null && exclude == null)
+	    return (null);
+	return ("only=" + ((only == null) ? "*" : String.join(",", new TreeSet<String>(only))) +
+		" exclude=" + ((exclude == null) ? "" : String.join(",", new TreeSet<String>(exclude))));
+    }
+
+    /* Every layer, building any an index() resource hasn't built yet */
+    public synchronized Collection<? extends Layer> layers() {
+	if (layers == null) {
+	    List<Layer> layers = new LinkedList<Layer>();
+	    for (LayerRef r : index) {
+		if (!wanted(r.type))
+		    continue;
+		layers.add(r.get());
+	    }
+	    this.layers = layers;
+	}
+	return (layers);
+    }
+
+    /* The layers of one type, in file order */
+    public List<Layer> layers(String type) {
+	List<Layer> ret = new ArrayList<Layer>();
+	if (index != null) {
+	    for (LayerRef r : index) {
+		if (r.type.equals(type))
+		    ret.add(r.get());
+	    }
+	} else {
+	    for (Layer l : layers) {
+		if (tname(l.type_buffer()).equals(type))
+		    ret.add(l);
+	    }
+	}
+	return (ret);
+    }
+
+    /* The i:th layer of a type, or null if there are not that many */
+    public Layer layer(String type, int i) {
+	if (index != null) {
+	    for (LayerRef r : index) {
+		if (r.type.equals(type) && i-- == 0)
+		    return (r.get());
+	    }
+	    return (null);
+	}
+	List<Layer> l = layers(type);
+	return ((i < l.size()) ? l.get(i) : null);
+    }
+
+    /* Layer headers of an index() resource, null otherwise */
+    public List<LayerRef> index() {
+	return ((index == null) ? null : Collections.unmodifiableList(index));
+    }
+
     public void decodeall() throws Exception {
 	final String base = out + name;
 	new File(base).mkdirs();
@@ -1690,8 +1989,10 @@ public class Resource {
 	    for (int i = 0; i < TYPES; ++i)
 		c[i] = 0;
 	}
-	for (Layer l : layers) {
+	for (Layer l : layers()) {
+	    long st = System.nanoTime();
 	    l.decode(base, c[l.type()]++);
+	    if (stats != null) stats.decode(tname(l.type_buffer()), System.nanoTime() - st);
 	}
 	BufferedWriter bw = new BufferedWriter(new FileWriter(base + "/meta"));
 	bw.write("#General info for res " + base + END);
@@ -1702,137 +2003,143 @@ public class Resource {
     }
 
     private void loadfromdecode(String full) throws Exception {
+	loadfromdecode(full, null);
+    }
+
+    private void loadfromdecode(String full, List<Manifest.LayerRec> prev) throws Exception {
 	if (!full.endsWith(".res")) throw (new Exception("Invalid decoded res directory"));
 	File f = new File(full);
 	if (!f.isDirectory()) throw (new Exception("Invalid decoded res directory"));
+	Map<String, Manifest.LayerRec> old = new HashMap<String, Manifest.LayerRec>();
+	if (prev != null) {
+	    for (Manifest.LayerRec r : prev)
+		old.put(r.src, r);
+	}
 	File l[] = f.listFiles();
 	File df[];
 	String n;
-	int i, j;
+	int i;
 	List<Layer> layers = new LinkedList<Layer>();
-	for (i = 0; i < l.length; ++i) {
-	    if (l[i].isDirectory()) {
-		n = l[i].getName();
-		Class<? extends Layer> lc = ltypes.get(n);
-		if (lc == null) continue;
-		Constructor<? extends Layer> cons;
-
-		df = l[i].listFiles();
-		switch (n) {
-		    case "image":
-		    case "tile": { /* .data + .png */
-			if (df.length % 2 != 0) throw (new Exception("Invalid number of decoded files for " + n));
-			try {
-			    cons = lc.getConstructor(Resource.class, File.class, File.class);
-			} catch (NoSuchMethodException e) {
-			    throw (new LoadException(e, Resource.this));
-			}
-			for (j = 0; j < df.length - 1; ++j) {
-			    if (df[j].getName().endsWith(".data") || df[j + 1].getName().endsWith(".png"))
-				layers.add(cons.newInstance(this, df[j++], df[j]));
+	List<Splice> splices = new ArrayList<Splice>();
+	try (RandomAccessFile pres = old.isEmpty() ? null : new RandomAccessFile(out + name, "r")) {
+	    for (i = 0; i < l.length; ++i) {
+		if (l[i].isDirectory()) {
+		    n = l[i].getName();
+		    LayerCodec c = codecs.get(n);
+		    if (c == null || c.src == null) continue;
+		    df = l[i].listFiles();
+		    Arrays.sort(df, DORDER);
+		    for (File[] src : c.src.group(df)) {
+			String fp = Manifest.srcfp(src);
+			Manifest.LayerRec r = old.get(fp);
+			if (r != null && r.type.equals(n)) {
+			    byte[] raw = new byte[r.len];
+			    pres.seek(r.off);
+			    pres.readFully(raw);
+			    splices.add(new Splice(n, raw, fp, layers.size()));
+			    spliced++;
+			} else {
+			    long st = System.nanoTime();
+			    Layer ly = c.dec.make(this, src);
+			    if (stats != null) stats.load(n, -1, System.nanoTime() - st);
+			    ly.srcfp = fp;
+			    layers.add(ly);
 			}
 		    }
-			break;
-		    case "code": { /* .data + .class */
-			if(df.length % 2 != 0) throw (new Exception("Invalid number of decoded files for " + n));
-			try {
-			    cons = lc.getConstructor(Resource.class, File.class, File.class);
-			} catch (NoSuchMethodException e) {
-			    throw (new LoadException(e, Resource.this));
-			}
-			for (j = 0; j < df.length - 1; j += 2) {
-			    if(df[j].getName().endsWith(".data")) {
-				layers.add(cons.newInstance(this, df[j], df[j + 1]));
-			    } else if(df[j].getName().endsWith(".class")) {
-				layers.add(cons.newInstance(this, df[j + 1], df[j]));
-			    }
-			}
-		    }
-			break;
-		    case "neg":
-		    case "anim":
-		    case "tooltip":
-		    case "tileset":
-		    case "codeentry":
-		    case "pagina":
-		    case "overlay":
-		    case "action": { /* .data */
-			try {
-			    cons = lc.getConstructor(Resource.class, File.class);
-			} catch (NoSuchMethodException e) {
-			    throw (new LoadException(e, Resource.this));
-			}
-			for (j = 0; j < df.length; ++j)
-			    if (df[j].getName().endsWith(".data")) layers.add(cons.newInstance(this, df[j]));
-		    }
-		    break;
-		    case "mat2": { /* .data */
-			try {
-			    cons = lc.getConstructor(Resource.class, File.class);
-			} catch (NoSuchMethodException e) {
-			    throw (new LoadException(e, Resource.this));
-			}
-			for (j = 0; j < df.length; ++j)
-			    if (df[j].getName().endsWith(".json")) layers.add(cons.newInstance(this, df[j]));
-		    }
-		    break;
-		    case "midi": { /* .music */
-			try {
-			    cons = lc.getConstructor(Resource.class, File.class);
-			} catch (NoSuchMethodException e) {
-			    throw (new LoadException(e, Resource.this));
-			}
-			for (j = 0; j < df.length; ++j)
-			    if (df[j].getName().endsWith(".midi")) layers.add(cons.newInstance(this, df[j]));
-		    }
-			break;
-		    case "audio": { /* .ogg */
-			try {
-			    cons = lc.getConstructor(Resource.class, File.class);
-			} catch (NoSuchMethodException e) {
-			    throw (new LoadException(e, Resource.this));
-			}
-			for (j = 0; j < df.length; ++j)
-			    if (df[j].getName().endsWith(".ogg")) layers.add(cons.newInstance(this, df[j]));
-		    }
-			break;
-		    case "src":  /* .java */
-			try {
-			    cons = lc.getConstructor(Resource.class, File.class);
-			} catch (NoSuchMethodException e) {
-			    throw (new LoadException(e, Resource.this));
-			}
-			for (j = 0; j < df.length; ++j)
-			    if(df[j].getName().endsWith(".java")) layers.add(cons.newInstance(this, df[j]));
-
-			break;
 		}
 	    }
 	}
 	this.layers = layers;
+	this.splices = splices;
 
 	BufferedReader br = new BufferedReader(new FileReader(full + "/meta"));
 	ver = Utils.rnint(br);
 	br.close();
     }
 
+    /* Layer type name from a NUL terminated type_buffer() */
+    static String tname(byte[] tbuf) {
+	return (new String(tbuf, 0, tbuf.length - 1, StandardCharsets.UTF_8));
+    }
+
+    /* Decoded files in layer order: type_2.data, type_2.png, type_10.data, ... */
+    private static final Comparator<File> DORDER = (a, b) -> {
+	String an = a.getName(), bn = b.getName();
+	int ad = an.indexOf('.'), bd = bn.indexOf('.');
+	if (ad < 0) ad = an.length();
+	if (bd < 0) bd = bn.length();
+	if (ad != bd) return (ad - bd);
+	return (an.compareTo(bn));
+    };
+
     public void encodeall() throws Exception {
+	LayerWriter w = writers.get().reset();
+	encode(w);
+	encodeall(w);
+    }
+
+    private static final ThreadLocal<LayerWriter> writers = ThreadLocal.withInitial(LayerWriter::new);
+
+    /* Writes the output of encode() to the resource's .res file */
+    public void encodeall(byte[] data) throws Exception {
+	try (FileOutputStream fos = create()) {
+	    fos.write(data);
+	}
+    }
+
+    private void encodeall(LayerWriter w) throws Exception {
+	try (FileOutputStream fos = create()) {
+	    w.writeTo(fos);
+	}
+    }
+
+    private FileOutputStream create() throws IOException {
 	File f = new File(out + name);
 	f.mkdirs();
 	f.delete();
-	f.createNewFile();
-	FileOutputStream fos = new FileOutputStream(f);
-	byte buf[] = BSIG;
-	fos.write(buf);/* 1 String */
-	buf = Utils.byte_int16d(ver);
-	fos.write(buf);/* 2 Bytes */
-
-	for (Layer l : layers) {
-	    fos.write(l.type_buffer()); /* Layer id */
-	    fos.write(Utils.byte_int32d(l.size())); /* 4 bytes */
-	    l.encode(fos); /* l.size() bytes */
-	}
-	fos.flush();
-	fos.close();
+	return (new FileOutputStream(f));
+    }
+
+    public byte[] encode() throws Exception {
+	LayerWriter w = writers.get().reset();
+	encode(w);
+	return (w.fin());
+    }
+
+    public void encode(LayerWriter out) throws Exception {
+	int base = out.size();
+	out.addbytes(BSIG);/* 1 String */
+	out.adduint16(ver);/* 2 Bytes */
+	List<Manifest.LayerRec> lrecs = new ArrayList<Manifest.LayerRec>();
+	Iterator<Splice> si = splices.iterator();
+	Splice sp = si.hasNext() ? si.next() : null;
+	int n = 0;
+
+	for (Layer l : layers()) {
+	    for (; sp != null && sp.at == n; sp = si.hasNext() ? si.next() : null)
+		splice(out, base, sp, lrecs);
+	    long st = System.nanoTime();
+	    byte[] tbuf = l.type_buffer();
+	    out.begin(tbuf);
+	    long off = out.size() - base;
+	    l.encode(out);
+	    int len = out.end();
+	    lrecs.add(new Manifest.LayerRec(tname(tbuf), l.srcfp, off, len));
+	    if (stats != null) stats.encode(tname(tbuf), len, System.nanoTime() - st, l.srcfp != null);
+	    n++;
+	}
+	for (; sp != null; sp = si.hasNext() ? si.next() : null)
+	    splice(out, base, sp, lrecs);
+	this.lrecs = lrecs;
+    }
+
+    private void splice(LayerWriter out, int base, Splice sp, List<Manifest.LayerRec> lrecs) {
+	long st = System.nanoTime();
+	out.begin(sp.tbuf);
+	long off = out.size() - base;
+	out.addbytes(sp.raw);
+	int len = out.end();
+	lrecs.add(new Manifest.LayerRec(tname(sp.tbuf), sp.srcfp, off, len));
+	if (stats != null) stats.encode(tname(sp.tbuf), len, System.nanoTime() - st, true);
     }
 }
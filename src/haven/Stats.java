@@ -0,0 +1,163 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Run statistics for -stats: time and bytes per layer type, and
+ * latency per resource */
+public class Stats {
+    public static final int TOP = 10;
+
+    public static class Kind {
+	final LongAdder count = new LongAdder(), bytes = new LongAdder();
+	/* Nanoseconds spent in Resource.load, Layer.decode and Layer.encode */
+	final LongAdder load = new LongAdder(), decode = new LongAdder(), encode = new LongAdder();
+    }
+
+    public static class Slow {
+	public final String name;
+	public final long ns;
+
+	Slow(String name, long ns) {
+	    this.name = name;
+	    this.ns = ns;
+	}
+    }
+
+    private final ConcurrentHashMap<String, Kind> kinds = new ConcurrentHashMap<String, Kind>();
+    private long[] lat = new long[1024];
+    private int nlat = 0;
+    private final PriorityQueue<Slow> slow = new PriorityQueue<Slow>(TOP + 1, (a, b) -> Long.compare(a.ns, b.ns));
+    private final long start = System.nanoTime();
+
+    private Kind kind(String type) {
+	return (kinds.computeIfAbsent(type, t -> new Kind()));
+    }
+
+    /* len is -1 for layers built from decoded files, which are only
+     * counted once encoded */
+    public void load(String type, int len, long ns) {
+	Kind k = kind(type);
+	if(len >= 0) {
+	    k.count.increment();
+	    k.bytes.add(len);
+	}
+	k.load.add(ns);
+    }
+
+    public void decode(String type, long ns) {
+	kind(type).decode.add(ns);
+    }
+
+    public void encode(String type, int len, long ns, boolean count) {
+	Kind k = kind(type);
+	if(count) {
+	    k.count.increment();
+	    k.bytes.add(len);
+	}
+	k.encode.add(ns);
+    }
+
+    public synchronized void file(String name, long ns) {
+	if(nlat == lat.length)
+	    lat = Arrays.copyOf(lat, lat.length * 2);
+	lat[nlat++] = ns;
+	slow.add(new Slow(name, ns));
+	if(slow.size() > TOP)
+	    slow.poll();
+    }
+
+    static String ms(long ns) {
+	return (String.format("%.1f", ns / 1e6));
+    }
+
+    public synchronized void report(PrintStream out) {
+	long[] lat = Arrays.copyOf(this.lat, nlat);
+	Arrays.sort(lat);
+	out.println(String.format("%-10s %8s %12s %10s %10s %10s %10s", "layer", "count", "bytes", "load ms", "decode ms", "encode ms", "MB/s"));
+	for (Map.Entry<String, Kind> e : new TreeMap<String, Kind>(kinds).entrySet()) {
+	    Kind k = e.getValue();
+	    long t = k.load.sum() + k.decode.sum() + k.encode.sum();
+	    out.println(String.format("%-10s %8d %12d %10s %10s %10s %10s", e.getKey(), k.count.sum(), k.bytes.sum(),
+				      ms(k.load.sum()), ms(k.decode.sum()), ms(k.encode.sum()),
+				      (t > 0) ? String.format("%.1f", k.bytes.sum() / 1e6 / (t / 1e9)) : "-"));
+	}
+	out.println();
+	out.println(String.format("%d resources in %s ms", nlat, ms(System.nanoTime() - start)));
+	if(nlat > 0)
+	    out.println(String.format("latency ms: p50 %s  p90 %s  p99 %s  max %s",
+				      ms(pct(lat, 50)), ms(pct(lat, 90)), ms(pct(lat, 99)), ms(lat[nlat - 1])));
+	out.println("slowest:");
+	for (Slow f : slowest())
+	    out.println(String.format("  %10s ms  %s", ms(f.ns), f.name));
+    }
+
+    public synchronized void json(File f) throws IOException {
+	long[] lat = Arrays.copyOf(this.lat, nlat);
+	Arrays.sort(lat);
+	Map<String, Object> root = new LinkedHashMap<String, Object>();
+	Map<String, Object> layers = new TreeMap<String, Object>();
+	for (Map.Entry<String, Kind> e : kinds.entrySet()) {
+	    Kind k = e.getValue();
+	    Map<String, Object> o = new LinkedHashMap<String, Object>();
+	    o.put("count", k.count.sum());
+	    o.put("bytes", k.bytes.sum());
+	    o.put("load_ns", k.load.sum());
+	    o.put("decode_ns", k.decode.sum());
+	    o.put("encode_ns", k.encode.sum());
+	    layers.put(e.getKey(), o);
+	}
+	root.put("layers", layers);
+	root.put("files", nlat);
+	root.put("wall_ns", System.nanoTime() - start);
+	Map<String, Object> pct = new LinkedHashMap<String, Object>();
+	if(nlat > 0) {
+	    pct.put("p50_ns", pct(lat, 50));
+	    pct.put("p90_ns", pct(lat, 90));
+	    pct.put("p99_ns", pct(lat, 99));
+	    pct.put("max_ns", lat[nlat - 1]);
+	}
+	root.put("latency", pct);
+	root.put("slowest", slowest());
+	try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8))) {
+	    new GsonBuilder().setPrettyPrinting().create().toJson(root, w);
+	}
+    }
+
+    private List<Slow> slowest() {
+	List<Slow> ret = new ArrayList<Slow>(slow);
+	ret.sort((a, b) -> Long.compare(b.ns, a.ns));
+	return (ret);
+    }
+
+    private static long pct(long[] sorted, int p) {
+	int i = (int) Math.ceil(sorted.length * p / 100.0) - 1;
+	return (sorted[Math.max(0, Math.min(sorted.length - 1, i))]);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+/* Receives the values of a TTO list one by one as Message.list(TtoVisitor)
+ * reads them, with no boxing and no Object[] per list. A nested list
+ * comes between beginList() and endList(). Every method does nothing
+ * by default, so a visitor only overrides what it looks for. */
+public interface TtoVisitor {
+    default void onInt(int v) {}
+    default void onString(String v) {}
+    default void onCoord(int x, int y) {}
+    default void onUint8(int v) {}
+    default void onUint16(int v) {}
+    default void onInt8(int v) {}
+    default void onInt16(int v) {}
+    default void onColor(int r, int g, int b, int a) {}
+    default void onNil() {}
+    default void onUid(long v) {}
+    default void onBytes(byte[] v) {}
+    default void onFloat32(float v) {}
+    default void onFloat64(double v) {}
+    default void onFCoord32(float x, float y) {}
+    default void onFCoord64(double x, double y) {}
+    default void beginList() {}
+    default void endList() {}
+}
@@ -0,0 +1,127 @@
+/*
+ *  This file is part of the LayerUtil
+ *  Copyright (C) 2011 Corey Furmanski <furmanskic@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+/* Writes TTO values to a Message as they are given, in the encoding
+ * Message.addlist() uses for the equivalent Object[]. As a visitor
+ * it also copies a list: msg.list(new TtoWriter(out)). */
+public class TtoWriter implements TtoVisitor {
+    public final Message out;
+
+    public TtoWriter(Message out) {
+	this.out = out;
+    }
+
+    public void onInt(int v) {
+	out.adduint8(Message.T_INT);
+	out.addint32(v);
+    }
+
+    public void onString(String v) {
+	out.adduint8(Message.T_STR);
+	out.addstring(v);
+    }
+
+    public void onCoord(int x, int y) {
+	out.adduint8(Message.T_COORD);
+	out.addint32(x);
+	out.addint32(y);
+    }
+
+    public void onUint8(int v) {
+	out.adduint8(Message.T_UINT8);
+	out.adduint8(v);
+    }
+
+    public void onUint16(int v) {
+	out.adduint8(Message.T_UINT16);
+	out.adduint16(v);
+    }
+
+    public void onInt8(int v) {
+	out.adduint8(Message.T_INT8);
+	out.adduint8(v);
+    }
+
+    public void onInt16(int v) {
+	out.adduint8(Message.T_INT16);
+	out.addint16((short) v);
+    }
+
+    public void onColor(int r, int g, int b, int a) {
+	out.adduint8(Message.T_COLOR);
+	out.adduint8(r);
+	out.adduint8(g);
+	out.adduint8(b);
+	out.adduint8(a);
+    }
+
+    public void onNil() {
+	out.adduint8(Message.T_NIL);
+    }
+
+    public void onUid(long v) {
+	out.adduint8(Message.T_UID);
+	out.addint64(v);
+    }
+
+    public void onBytes(byte[] v) {
+	out.adduint8(Message.T_BYTES);
+	if(v.length < 128) {
+	    out.adduint8(v.length);
+	} else {
+	    out.adduint8(0x80);
+	    out.addint32(v.length);
+	}
+	out.addbytes(v);
+    }
+
+    public void onFloat32(float v) {
+	out.adduint8(Message.T_FLOAT32);
+	out.addfloat32(v);
+    }
+
+    public void onFloat64(double v) {
+	out.adduint8(Message.T_FLOAT64);
+	out.addfloat64(v);
+    }
+
+    public void onFCoord32(float x, float y) {
+	out.adduint8(Message.T_FCOORD32);
+	out.addfloat32(x);
+	out.addfloat32(y);
+    }
+
+    public void onFCoord64(double x, double y) {
+	out.adduint8(Message.T_FCOORD64);
+	out.addfloat64(x);
+	out.addfloat64(y);
+    }
+
+    public void beginList() {
+	out.adduint8(Message.T_TTOL);
+    }
+
+    public void endList() {
+	out.adduint8(Message.T_END);
+    }
+}
@@ -50,101 +50,86 @@ public class Utils {
     	return(new Coord(0,0));
     }
 	
+    /* Little-endian codecs, as plain shifts and masks with no branches
+     * or long arithmetic */
     static int ub(byte b) {
-	if(b < 0)
-	    return(256 + b);
-	else
-	    return(b);
+	return(b & 0xff);
     }
 	
     static byte sb(int b) {
-	if(b > 127)
-	    return((byte)(-256 + b));
-	else
-	    return((byte)b);
+	return((byte)b);
     }
 	
     static int uint16d(byte[] buf, int off) {
-	return(ub(buf[off]) + (ub(buf[off + 1]) * 256));
+	return((buf[off] & 0xff) | ((buf[off + 1] & 0xff) << 8));
     }
 	
     static int int16d(byte[] buf, int off) {
-	int u = uint16d(buf, off);
-	if(u > 32767)
-	    return(-65536 + u);
-	else
-	    return(u);
+	return((short)((buf[off] & 0xff) | (buf[off + 1] << 8)));
     }
 
-    static byte[] byte_int16d(int value){
-	return(new byte[] {
-		(byte)(value & 0xff),
-		(byte)((value >> 8) & 0xff)
-	    });
-    }
-
-    static byte[] byte_float32d(float value) {
-        byte[] buf = new byte[4];
-        float32e(value, buf, 0);
-	return(buf);
-    }
-	
     static long uint32d(byte[] buf, int off) {
-	return(ub(buf[off]) + (ub(buf[off + 1]) * 256) + (ub(buf[off + 2]) * 65536) + (ub(buf[off + 3]) * 16777216));
+	return(int32d(buf, off) & 0xffffffffL);
     }
 	
     static void uint32e(long num, byte[] buf, int off) {
-	buf[off] = sb((int)(num & 0xff));
-	buf[off + 1] = sb((int)((num & 0xff00) >> 8));
-	buf[off + 2] = sb((int)((num & 0xff0000) >> 16));
-	buf[off + 3] = sb((int)((num & 0xff000000) >> 24));
+	int32e((int)num, buf, off);
     }
 
     static int int32d(byte[] buf, int off) {
-	long u = uint32d(buf, off);
-	if(u > Integer.MAX_VALUE)
-	    return ((int) ((((long) Integer.MIN_VALUE) * 2) - u));
-	else
-	    return ((int) u);
+	return((buf[off] & 0xff) | ((buf[off + 1] & 0xff) << 8) |
+	       ((buf[off + 2] & 0xff) << 16) | (buf[off + 3] << 24));
     }
 
     public static long int64d(byte[] buf, int off) {
-	long b = 0;
-	for (int i = 0; i < 8; i++)
-	    b |= ((long) ub(buf[off + i])) << (i * 8);
-	return (b);
+	return ((int32d(buf, off) & 0xffffffffL) | (((long) int32d(buf, off + 4)) << 32));
     }
 
     public static void int64e(long num, byte[] buf, int off) {
-	for (int i = 0; i < 8; i++) {
-	    buf[off++] = (byte) (num & 0xff);
-	    num >>>= 8;
-	}
-    }
-
-    static byte[] byte_int32d(int value) {
-	return (new byte[]{
-	    (byte) (value & 0xff),
-	    (byte) ((value >> 8) & 0xff),
-	    (byte) ((value >> 16) & 0xff),
-	    (byte) ((value >> 24) & 0xff)
-	});
+	int32e((int) num, buf, off);
+	int32e((int) (num >>> 32), buf, off + 4);
     }
 
     static void int32e(int num, byte[] buf, int off) {
-	if(num < 0)
-	    uint32e(0x100000000L + ((long) num), buf, off);
-	else
-	    uint32e(num, buf, off);
+	buf[off] = (byte)num;
+	buf[off + 1] = (byte)(num >>> 8);
+	buf[off + 2] = (byte)(num >>> 16);
+	buf[off + 3] = (byte)(num >>> 24);
     }
 
     static void uint16e(int num, byte[] buf, int off) {
-	buf[off] = sb(num & 0xff);
-	buf[off + 1] = sb((num & 0xff00) >> 8);
+	buf[off] = (byte)num;
+	buf[off + 1] = (byte)(num >>> 8);
     }
 
     public static void int16e(short num, byte[] buf, int off) {
-	uint16e(((int) num) & 0xffff, buf, off);
+	uint16e(num, buf, off);
+    }
+
+    /* Bulk decoders for n consecutive values from buf[off] into dst[doff] */
+    public static void int16s(byte[] buf, int off, int[] dst, int doff, int n) {
+	for(int i = 0; i < n; i++, off += 2)
+	    dst[doff + i] = (short)((buf[off] & 0xff) | (buf[off + 1] << 8));
+    }
+
+    public static void uint16s(byte[] buf, int off, int[] dst, int doff, int n) {
+	for(int i = 0; i < n; i++, off += 2)
+	    dst[doff + i] = (buf[off] & 0xff) | ((buf[off + 1] & 0xff) << 8);
+    }
+
+    public static void int32s(byte[] buf, int off, int[] dst, int doff, int n) {
+	for(int i = 0; i < n; i++, off += 4)
+	    dst[doff + i] = int32d(buf, off);
+    }
+
+    public static void float16s(byte[] buf, int off, float[] dst, int doff, int n) {
+	for(int i = 0; i < n; i++, off += 2)
+	    dst[doff + i] = hfdec((short)((buf[off] & 0xff) | (buf[off + 1] << 8)));
+    }
+
+    public static void float32s(byte[] buf, int off, float[] dst, int doff, int n) {
+	for(int i = 0; i < n; i++, off += 4)
+	    dst[doff + i] = Float.intBitsToFloat(int32d(buf, off));
     }
 
     public static double floatd(byte[] buf, int off) {
@@ -328,21 +313,6 @@ public class Utils {
 	return (ret);
     }
 
-    static byte[] byte_strd(String s) throws Exception{
-	int i;
-	byte[] utf8 = s.getBytes("UTF-8");
-	byte[] b = new byte[utf8.length+1];
-	for(i=0;i<utf8.length;++i){
-	    b[i] = utf8[i];
-	}
-	b[utf8.length] = 0;// nul end
-	return(b);
-    }
-
-    static byte[] byte_str(String s) throws Exception{
-	return(s.getBytes("UTF-8"));
-    }
-	
     static char num2hex(int num) {
 	if(num < 10)
 	    return((char)('0' + num));